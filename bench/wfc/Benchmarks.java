@@ -0,0 +1,246 @@
+package wfc;
+
+import wfc.utility.BitSet;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * Benchmarks of pattern extraction, generation and the bitset operations the propagation is built on.
+ * Run them before and after a change, and compare with the checked-in baseline (bench/baseline.txt).
+ *
+ * The project has no build or dependencies, so this is a small harness of its own instead of JMH.
+ * Every benchmark is warmed up for a fixed time, then measured in timed iterations.
+ * The score is the average time per operation, with the standard deviation over the iterations.
+ * The results of the operations are consumed (sink), so the JIT can't remove them.
+ * It lives in package wfc (separate source folder) to reach the package private internals.
+ *
+ * Arguments (all optional, key=value):
+ *
+ * filter=extract,generate,adjacent,and,cardinality  benchmarks whose name contains any of them
+ * images=Town,Rooms,Caves,Flowers  samples in img/ (or "all")
+ * sizes=32,64  output width and height
+ * permutations=true,false  allow_pattern_permutations
+ * wrap=false,true  wrap_around
+ * propagation=BITSET_UNION,SUPPORT_COUNT
+ * warmup=1000  warmup time in ms
+ * iterations=5  measured iterations
+ * time=1000  time per iteration in ms
+ *
+ */
+
+
+public class Benchmarks {
+
+    private static final int SEED = 1337;
+    private static final int FAILURE_LIMIT = 100;
+    private static final int PATTERN_SIZE = 3;
+    private static final int SAMPLES = 64; // random inputs the micro benchmarks cycle through
+
+    private static long sink;
+
+    private final Map<String,String> arguments;
+    private final long warmup_nanos;
+    private final long iteration_nanos;
+    private final int iterations;
+
+
+    private Benchmarks(Map<String,String> arguments) {
+        this.arguments = arguments;
+        this.warmup_nanos = Long.parseLong(argument("warmup","1000")) * 1_000_000L;
+        this.iteration_nanos = Long.parseLong(argument("time","1000")) * 1_000_000L;
+        this.iterations = Integer.parseInt(argument("iterations","5"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String,String> arguments = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 1) throw new IllegalArgumentException("Expected key=value: " + arg);
+            arguments.put(arg.substring(0,separator),arg.substring(separator + 1));
+        } new Benchmarks(arguments).run_all();
+    }
+
+    private void run_all() throws IOException {
+        System.out.printf("# java %s, %s %s, %d processors%n", System.getProperty("java.version"),
+        System.getProperty("os.name"), System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors());
+        System.out.printf("# warmup %d ms, %d x %d ms iterations%n", warmup_nanos / 1_000_000L, iterations, iteration_nanos / 1_000_000L);
+        System.out.printf("%-12s %-58s %14s %12s%n", "benchmark", "parameters", "ns/op", "+- sd");
+        List<String> images = list("images","Town,Rooms,Caves,Flowers");
+        if (images.size() == 1 && images.get(0).equals("all")) {
+            images = new ArrayList<>();
+            String[] files = new File("img").list((dir, name) -> name.endsWith(".png"));
+            if (files == null) throw new IOException("No img directory in " + new File("").getAbsolutePath());
+            Arrays.sort(files);
+            for (String file : files) images.add(file.substring(0,file.length() - 4));
+        } for (String image : images) {
+            int[][] input = load_image("img/" + image + ".png");
+            for (String permutations : list("permutations","true,false")) {
+                boolean allow_permutations = Boolean.parseBoolean(permutations);
+                Patterns patterns = Patterns.extract(input,PATTERN_SIZE,allow_permutations);
+                String parameters = image + " permutations=" + allow_permutations + " patterns=" + patterns.count();
+                if (selected("extract")) {
+                    measure("extract", parameters, () -> Patterns.extract(input,PATTERN_SIZE,allow_permutations).count());
+                } if (selected("adjacent")) benchmark_adjacent(patterns, parameters);
+                if (selected("and")) benchmark_and(patterns, parameters);
+                if (selected("cardinality")) benchmark_cardinality(patterns, parameters);
+                if (selected("generate")) {
+                    for (String propagation : list("propagation","BITSET_UNION,SUPPORT_COUNT")) {
+                        for (String size : list("sizes","32,64")) {
+                            for (String wrap : list("wrap","false,true")) {
+                                benchmark_generate(patterns, image, allow_permutations, WFC.Propagation.valueOf(propagation),
+                                Integer.parseInt(size), Boolean.parseBoolean(wrap));
+                            }
+                        }
+                    }
+                }
+            }
+        } System.out.println("# sink " + sink);
+    }
+
+    /*
+        One full generate call. The noise seed is reset once per benchmark, so every run measures the same
+        sequence of outputs. Failed outputs (failure_limit reached) count as operations too, and are reported.
+     */
+
+    private void benchmark_generate(Patterns patterns, String image, boolean allow_permutations,
+                                    WFC.Propagation propagation, int size, boolean wrap_around) {
+        Solver solver = new Solver(patterns,SEED);
+        solver.set_propagation(propagation);
+        int[][] output = new int[size][size];
+        int[] outputs = new int[2]; // [attempted, failed]
+        String parameters = image + " permutations=" + allow_permutations + " " + propagation +
+        " " + size + "x" + size + " wrap=" + wrap_around;
+        measure("generate", parameters, () -> {
+            outputs[0]++;
+            if (!solver.generate(output,FAILURE_LIMIT,wrap_around)) outputs[1]++;
+            return output[0][0];
+        }); if (outputs[1] > 0) System.out.printf("%-12s %-58s failed %d / %d%n", "", "", outputs[1], outputs[0]);
+    }
+
+    /*
+        The union of the adjacent patterns of random sets of options. (The inner loop of BITSET_UNION)
+        Set sizes are spread out over [1 -> count], like the remaining options of Cells during a generation.
+     */
+
+    private void benchmark_adjacent(Patterns patterns, String parameters) {
+        int count = patterns.count();
+        SplittableRandom random = new SplittableRandom(SEED);
+        IntBuffer[] options = new IntBuffer[SAMPLES];
+        for (int s = 0; s < SAMPLES; s++) {
+            BitSet set = random_bitset(random, count, random.nextDouble());
+            if (set.isEmpty()) set.set(random.nextInt(count));
+            int cardinality = set.cardinality();
+            options[s] = IntBuffer.allocate(cardinality);
+            set.indices(options[s],cardinality);
+            options[s].flip();
+        } patterns.valid_adjacent_patterns(options[0],0,new BitSet(count)); // build the bitsets outside the measurement
+        BitSet dst = new BitSet(count);
+        int[] next = new int[1];
+        measure("adjacent", parameters, () -> {
+            int s = next[0]++;
+            return patterns.valid_adjacent_patterns(options[s & (SAMPLES - 1)],s & 3,dst).word(0);
+        });
+    }
+
+    private void benchmark_and(Patterns patterns, String parameters) {
+        int count = patterns.count();
+        BitSet[] sets = random_bitsets(count);
+        BitSet dst = new BitSet(count);
+        int[] next = new int[1];
+        measure("and", parameters, () -> {
+            int s = next[0]++;
+            dst.or(sets[s & (SAMPLES - 1)]);
+            dst.and(sets[(s + 1) & (SAMPLES - 1)]);
+            return dst.word(0);
+        });
+    }
+
+    private void benchmark_cardinality(Patterns patterns, String parameters) {
+        BitSet[] sets = random_bitsets(patterns.count());
+        int[] next = new int[1];
+        measure("cardinality", parameters, () -> sets[next[0]++ & (SAMPLES - 1)].cardinality());
+    }
+
+    private interface Operation {
+        long run();
+    }
+
+    private void measure(String name, String parameters, Operation operation) {
+        // Operations are timed in batches of at least ~100 microseconds, so reading the clock is negligible
+        int batch = 1;
+        long warmup_end = System.nanoTime() + warmup_nanos;
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) sink += operation.run();
+            long end = System.nanoTime();
+            if (end >= warmup_end) break;
+            if (end - start < 100_000L && batch < (1 << 20)) batch *= 2;
+        } double[] scores = new double[iterations];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            long operations = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do { for (int i = 0; i < batch; i++) sink += operation.run();
+                operations += batch;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iteration_nanos);
+            scores[iteration] = (double) elapsed / operations;
+        } double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= iterations;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        double deviation = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        System.out.printf("%-12s %-58s %14.1f %12.1f%n", name, parameters, mean, deviation);
+    }
+
+    private static BitSet[] random_bitsets(int bits) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        BitSet[] sets = new BitSet[SAMPLES];
+        for (int s = 0; s < SAMPLES; s++) sets[s] = random_bitset(random, bits, 0.5);
+        return sets;
+    }
+
+    private static BitSet random_bitset(SplittableRandom random, int bits, double density) {
+        BitSet set = new BitSet(bits);
+        for (int i = 0; i < bits; i++) {
+            if (random.nextDouble() < density) set.setUnchecked(i);
+        } return set;
+    }
+
+    private boolean selected(String benchmark) {
+        for (String filter : list("filter","extract,generate,adjacent,and,cardinality")) {
+            if (benchmark.contains(filter)) return true;
+        } return false;
+    }
+
+    private List<String> list(String key, String defaults) {
+        return List.of(argument(key,defaults).split(","));
+    }
+
+    private String argument(String key, String defaults) {
+        return arguments.getOrDefault(key,defaults);
+    }
+
+    private static int[][] load_image(String path) throws IOException {
+        BufferedImage image = ImageIO.read(new File(path));
+        if (image == null) throw new IOException("Not an image: " + path);
+        int[][] result = new int[image.getHeight()][image.getWidth()];
+        for (int r = 0; r < result.length; r++) {
+            for (int c = 0; c < result[0].length; c++) {
+                result[r][c] = image.getRGB(c,r);
+            }
+        } return result;
+    }
+}
@@ -0,0 +1,63 @@
+package wfc;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ * Generates a region of chunks from every sample, and checks that no chunk failed.
+ * Every chunk must be streamed once, and be in the window when its row is done.
+ *
+ * The project has no build or dependencies, so this is a plain main instead of a JUnit test.
+ * Exits with status 1 if any check failed.
+ *
+ * Arguments (all optional): the samples in img/ (default Flowers Town Rooms Caves)
+ *
+ */
+
+
+public class ChunkGeneratorTest {
+
+    private static final int SEED = 1;
+    private static final int CHUNK_SIZE = 24;
+    private static final int REGION_SIZE = 10; // chunks, in both directions
+    private static final int FAILURE_LIMIT = 100;
+
+
+    public static void main(String[] args) throws IOException {
+        String[] images = args.length > 0 ? args : new String[] {"Flowers","Town","Rooms","Caves"};
+        int failed_checks = 0;
+        for (String image : images) {
+            WFC wfc = new WFC(load_image("img/" + image + ".png"),SEED,true,3);
+            wfc.set_propagation(WFC.Propagation.SUPPORT_COUNT);
+            Set<Long> streamed = new HashSet<>();
+            int[] duplicates = new int[1];
+            // Generated row by row, a chunk can get a new neighbour until the row above it is done
+            ChunkGenerator generator = new ChunkGenerator(wfc,CHUNK_SIZE,CHUNK_SIZE,REGION_SIZE + 2,SEED,
+            (chunk_x, chunk_y, values) -> {
+                if (!streamed.add(((long) chunk_x << 32) | chunk_y)) duplicates[0]++;
+            });
+            int failed = generator.generate_region(0,0,REGION_SIZE - 1,REGION_SIZE - 1,FAILURE_LIMIT);
+            boolean passed = failed == 0 && duplicates[0] == 0 && streamed.size() == REGION_SIZE * REGION_SIZE
+                    && generator.contains(REGION_SIZE - 1,REGION_SIZE - 1);
+            if (!passed) failed_checks++;
+            System.out.printf("%-8s %s  failed chunks: %d, streamed: %d, duplicates: %d%n",
+                    image, passed ? "PASS" : "FAIL", failed, streamed.size(), duplicates[0]);
+        } if (failed_checks > 0) System.exit(1);
+    }
+
+    private static int[][] load_image(String path) throws IOException {
+        BufferedImage image = ImageIO.read(new File(path));
+        if (image == null) throw new IOException("Not an image: " + path);
+        int[][] result = new int[image.getHeight()][image.getWidth()];
+        for (int r = 0; r < result.length; r++) {
+            for (int c = 0; c < result[0].length; c++) {
+                result[r][c] = image.getRGB(c,r);
+            }
+        } return result;
+    }
+}
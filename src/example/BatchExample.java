@@ -0,0 +1,52 @@
+package example;
+
+import wfc.WFC;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates batches of outputs from one shared WFC, with an increasing number of threads,
+ * and prints the throughput (outputs / second) and the scaling relative to a single thread.
+ */
+
+
+public class BatchExample {
+    
+    public static void main(String[] args) throws IOException {
+        // -------------------------------------------------------------------------------------
+        final String input_path = "img/Rooms.png";
+        final int seed = 1337;
+        final int output_width = 64;
+        final int output_height = 64;
+        final int failure_limit = 100;
+        final int batch_size = 32;
+        final boolean allow_permutation = true; // allow rotations and reflections of patterns
+        final boolean wrap_around = false; // output edges connected
+        final int max_threads = Runtime.getRuntime().availableProcessors();
+        // -------------------------------------------------------------------------------------
+        final int[][] training_data = Example.from_buffered_image(Example.load_buffered_image(input_path));
+        final WFC wfc = new WFC(training_data,seed,allow_permutation);
+        final int[] seeds = new int[batch_size];
+        for (int i = 0; i < batch_size; i++) seeds[i] = seed + i;
+        double single_thread_throughput = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, max_threads)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try { // First batch warms up the JIT
+                wfc.generate_batch(new int[batch_size][output_height][output_width],seeds,failure_limit,wrap_around,executor);
+                int[][][] outputs = new int[batch_size][output_height][output_width];
+                long start_time = System.nanoTime();
+                boolean[] results = wfc.generate_batch(outputs,seeds,failure_limit,wrap_around,executor);
+                double seconds = (System.nanoTime() - start_time) / 1_000_000_000.0d;
+                int successful = 0;
+                for (boolean result : results) if (result) successful++;
+                double throughput = batch_size / seconds;
+                if (threads == 1) single_thread_throughput = throughput;
+                System.out.printf("threads: %2d, outputs/sec: %8.2f, scaling: %5.2fx, successful: %d/%d%n",
+                threads, throughput, throughput / single_thread_throughput, successful, batch_size);
+            } finally { executor.shutdown(); }
+            if (threads == max_threads) break;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package example;
+
+import wfc.ChunkGenerator;
+import wfc.WFC;
+
+import java.awt.event.KeyAdapter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams an endless world, column of chunks by column of chunks, to the display.
+ * The display shows the latest chunk columns, the oldest column is overwritten by the next one.
+ */
+
+
+public class ChunkExample {
+    
+    public static void main(String[] args) throws IOException {
+        // -------------------------------------------------------------------------------------
+        final String input_path = "img/Town.png";
+        final int seed = (int)(System.currentTimeMillis());
+        final int display_scale = 4;
+        final int chunk_size = 24;
+        final int view_columns = 8; // chunks
+        final int view_rows = 4; // chunks
+        final int failure_limit = 100;
+        final boolean allow_permutation = true; // allow rotations and reflections of patterns
+        final int failed_color = 0xFFFF00FF; // fills the chunks that failed
+        // -------------------------------------------------------------------------------------
+        final int[][] view = new int[view_rows * chunk_size][view_columns * chunk_size];
+        final int[][] training_data = Example.from_buffered_image(Example.load_buffered_image(input_path));
+        final Display display = new Display(view,display_scale,new KeyAdapter() {});
+        final WFC wfc = new WFC(training_data,seed,allow_permutation);
+        wfc.set_propagation(WFC.Propagation.SUPPORT_COUNT);
+        // The previous column of chunks (+ the chunk below) is all a new chunk can be adjacent to
+        final int window_capacity = view_rows + 2;
+        final ChunkGenerator generator = new ChunkGenerator(wfc,chunk_size,chunk_size,window_capacity,seed,
+        (chunk_x, chunk_y, values) -> {
+            int view_x = Math.floorMod(chunk_x,view_columns) * chunk_size;
+            int view_y = chunk_y * chunk_size;
+            for (int r = 0; r < chunk_size; r++) {
+                System.arraycopy(values[r],0,view[view_y + r],view_x,chunk_size);
+            }
+        });
+        new Thread(display).start();
+        for (int chunk_x = 0; display.isActive(); chunk_x++) {
+            for (int chunk_y = 0; chunk_y < view_rows; chunk_y++) {
+                if (!generator.generate(chunk_x,chunk_y,failure_limit)) {
+                    // Mark the chunk, instead of showing the chunk of the previous lap in its place.
+                    // (A retry is solved with the same chunk seed, and fails the same way)
+                    int view_x = Math.floorMod(chunk_x,view_columns) * chunk_size;
+                    for (int r = 0; r < chunk_size; r++) {
+                        Arrays.fill(view[chunk_y * chunk_size + r],view_x,view_x + chunk_size,failed_color);
+                    }
+                }
+            }
+        }
+    }
+}
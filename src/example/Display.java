@@ -1,5 +1,7 @@
 package example;
 
+import wfc.ProgressBuffer;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyListener;
@@ -13,6 +15,8 @@ import static java.lang.System.nanoTime;
 /**
  * Utility class do display the wave function.
  * Running on separate thread at 60 frames / second.
+ * Either re-reads the whole pixel array every frame, or applies the committed
+ * cells drained from a ProgressBuffer. (Only what changed, and race-free)
  *
  * @author Frederik Dahl
  * 05/05/2023
@@ -24,21 +28,33 @@ public class Display extends JFrame implements Runnable {
     private Color background_color;
     private final Canvas canvas;
     private final BufferedImage image;
-    private final int[][] pixels;
+    private final int[][] pixels; // null if drawn from progress
+    private final ProgressBuffer progress; // null if drawn from pixels
+    private final int cols;
+    private final int rows;
     private final int scale;
     private boolean active;
     
     
     public Display(final int[][] pixels, int scale, KeyListener listener) {
+        this(pixels,null,pixels[0].length,pixels.length,scale,listener);
+    }
+    
+    public Display(ProgressBuffer progress, int cols, int rows, int scale, KeyListener listener) {
+        this(null,progress,cols,rows,scale,listener);
+    }
+    
+    private Display(int[][] pixels, ProgressBuffer progress, int cols, int rows, int scale, KeyListener listener) {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         setResizable(false);
         addKeyListener(listener);
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent e) { active = false; }});
-        int cols = pixels[0].length;
-        int rows = pixels.length;
         this.pixels = pixels;
+        this.progress = progress;
+        this.cols = cols;
+        this.rows = rows;
         this.scale = scale;
         active = true;
         background_color = new Color(0,0,0);
@@ -58,14 +74,18 @@ public class Display extends JFrame implements Runnable {
         double end_time;
         double delta_time = 0.0d;
         double accumulator = 0.0d;
-        while (active) {
-            accumulator += delta_time;
-            while (accumulator > interval) {
-                accumulator -= interval;
-                refresh();
-            } end_time = time();
-            delta_time = end_time - start_time;
-            start_time = end_time;
+        try {
+            while (active) {
+                accumulator += delta_time;
+                while (accumulator > interval) {
+                    accumulator -= interval;
+                    refresh();
+                } end_time = time();
+                delta_time = end_time - start_time;
+                start_time = end_time;
+            }
+        } finally { // nothing drains the progress anymore, the generating thread must not wait for it
+            if (progress != null) progress.close();
         }
     }
     
@@ -78,15 +98,22 @@ public class Display extends JFrame implements Runnable {
     }
     
     private void refresh() {
-        int width = pixels[0].length;
-        int height = pixels.length;
+        int width = cols;
+        int height = rows;
         BufferStrategy bufferStrategy = canvas.getBufferStrategy();
         Graphics graphics = bufferStrategy.getDrawGraphics();
         graphics.setColor(background_color);
         graphics.fillRect(0,0,width * scale,height * scale);
-        for (int r = 0; r < height; r++) {
-            for (int c = 0; c < width; c++) {
-                image.setRGB(c,r,pixels[r][c]);
+        if (progress != null) {
+            progress.drain(new ProgressBuffer.CellConsumer() {
+                public void accept(int x, int y, int value) { image.setRGB(x,y,value); }
+                public void reset() { clear_image(); }
+            });
+        } else {
+            for (int r = 0; r < height; r++) {
+                for (int c = 0; c < width; c++) {
+                    image.setRGB(c,r,pixels[r][c]);
+                }
             }
         }
         graphics.drawImage(image,0,0, width * scale, height * scale,null);
@@ -94,6 +121,14 @@ public class Display extends JFrame implements Runnable {
         bufferStrategy.show();
     }
     
+    private void clear_image() {
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                image.setRGB(c,r,0);
+            }
+        }
+    }
+    
     private double time() {
         return nanoTime() / 1_000_000_000.0d;
     }
@@ -1,5 +1,6 @@
 package example;
 
+import wfc.ProgressBuffer;
 import wfc.WFC;
 
 import javax.imageio.ImageIO;
@@ -30,21 +31,21 @@ public class Example {
         final int failure_limit = 100;
         final boolean allow_permutation = true; // allow rotations and reflections of patterns
         final boolean wrap_around = false; // output edges connected
+        final boolean backtracking = false; // rewind the last decision on contradiction, instead of restarting
         // -------------------------------------------------------------------------------------
         final int[][] output_data = new int[output_height][output_width];
         final int[][] training_data = from_buffered_image(load_buffered_image(input_path));
         final KeySignal any_key = new KeySignal();
-        final Display display = new Display(output_data,display_scale,any_key);
+        // The display applies the cells as they are committed (The generating thread never shares output_data)
+        final ProgressBuffer progress = new ProgressBuffer(output_width * output_height);
+        final Display display = new Display(progress,output_width,output_height,display_scale,any_key);
         final WFC wfc = new WFC(training_data,seed,allow_permutation);
+        wfc.set_backtracking(backtracking);
+        wfc.set_progress_listener(progress);
         new Thread(display).start();
         while (display.isActive()) {
             if (wfc.generate(output_data,failure_limit,wrap_around)) {
                 while (!any_key.isPressed()) {/*intentional*/}
-                for (int r = 0; r < output_height; r++) {
-                    for (int c = 0; c < output_width; c++) {
-                        output_data[r][c] = 0;
-                    }
-                }
             }
         }
     }
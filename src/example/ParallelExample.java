@@ -0,0 +1,49 @@
+package example;
+
+import wfc.WFC;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates one large output in parallel blocks, with an increasing number of threads,
+ * and prints the time it takes and the speedup relative to a single thread.
+ */
+
+
+public class ParallelExample {
+    
+    public static void main(String[] args) throws IOException {
+        // -------------------------------------------------------------------------------------
+        final String input_path = "img/Town.png";
+        final int seed = 1337;
+        final int output_width = 256;
+        final int output_height = 256;
+        final int block_size = 32;
+        final int overlap = 8; // less than block_size / 2
+        final int failure_limit = 100; // per block
+        final boolean allow_permutation = true; // allow rotations and reflections of patterns
+        final boolean wrap_around = false; // output edges connected
+        final int max_threads = Runtime.getRuntime().availableProcessors();
+        // -------------------------------------------------------------------------------------
+        final int[][] training_data = Example.from_buffered_image(Example.load_buffered_image(input_path));
+        final WFC wfc = new WFC(training_data,seed,allow_permutation);
+        wfc.set_propagation(WFC.Propagation.SUPPORT_COUNT);
+        double single_thread_seconds = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, max_threads)) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try { // First output warms up the JIT
+                wfc.generate_parallel(new int[output_height][output_width],block_size,overlap,failure_limit,wrap_around,executor);
+                int[][] output = new int[output_height][output_width];
+                long start_time = System.nanoTime();
+                boolean result = wfc.generate_parallel(output,block_size,overlap,failure_limit,wrap_around,executor);
+                double seconds = (System.nanoTime() - start_time) / 1_000_000_000.0d;
+                if (threads == 1) single_thread_seconds = seconds;
+                System.out.printf("threads: %2d, seconds: %6.2f, speedup: %5.2fx, successful: %b%n",
+                threads, seconds, single_thread_seconds / seconds, result);
+            } finally { executor.shutdown(); }
+            if (threads == max_threads) break;
+        }
+    }
+}
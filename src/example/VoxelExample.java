@@ -0,0 +1,72 @@
+package example;
+
+import wfc.VoxelWFC;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Generates a volume from a volume, and shows its layers (z) side by side, bottom layer first.
+ * The training volume is an image extruded upwards. A floor layer below it, and a layer of air above.
+ * Press any key to re-generate the output.
+ */
+
+
+public class VoxelExample {
+    
+    public static void main(String[] args) throws IOException {
+        // -------------------------------------------------------------------------------------
+        final String input_path = "img/Rooms.png";
+        final int seed = (int)(System.currentTimeMillis());
+        final int display_scale = 4;
+        final int output_width = 32;
+        final int output_height = 32;
+        final int output_depth = 6;
+        final int extrusion = 2; // layers of the image in the training volume
+        final int failure_limit = 100;
+        final int pattern_size = 2;
+        final boolean allow_permutation = true; // allow rotations (around z) and reflections of patterns
+        final boolean wrap_around = false; // output edges connected
+        final int floor = 0xFF404040;
+        final int air = 0xFF000000;
+        // -------------------------------------------------------------------------------------
+        final int[][] image = Example.from_buffered_image(Example.load_buffered_image(input_path));
+        final int[][][] training_volume = new int[extrusion + 2][][];
+        training_volume[0] = filled(image[0].length,image.length,floor);
+        for (int z = 1; z <= extrusion; z++) training_volume[z] = image;
+        training_volume[extrusion + 1] = filled(image[0].length,image.length,air);
+        final int[][][] output = new int[output_depth][output_height][output_width];
+        // The layers side by side, one column of pixels apart
+        final int[][] view = new int[output_height][output_depth * (output_width + 1) - 1];
+        final KeySignal any_key = new KeySignal();
+        final Display display = new Display(view,display_scale,any_key);
+        final VoxelWFC wfc = new VoxelWFC(training_volume,seed,allow_permutation,pattern_size);
+        wfc.set_backtracking(true);
+        new Thread(display).start();
+        while (display.isActive()) {
+            if (wfc.generate(output,failure_limit,wrap_around)) {
+                for (int z = 0; z < output_depth; z++) {
+                    for (int y = 0; y < output_height; y++) {
+                        System.arraycopy(output[z][y],0,view[y],z * (output_width + 1),output_width);
+                    }
+                } while (!any_key.isPressed()) {/*intentional*/}
+            }
+        }
+    }
+    
+    private static int[][] filled(int width, int height, int value) {
+        int[][] layer = new int[height][width];
+        for (int[] row : layer) Arrays.fill(row,value);
+        return layer;
+    }
+    
+    
+    private static final class KeySignal extends KeyAdapter {
+        private boolean pressed;
+        public void keyPressed(KeyEvent e) { synchronized (this) { pressed = true; } }
+        public void keyReleased(KeyEvent e) { synchronized (this) { pressed = false; } }
+        public synchronized boolean isPressed() { return pressed; }
+    }
+}
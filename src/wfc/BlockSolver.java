@@ -0,0 +1,282 @@
+package wfc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * Generates an output in overlapping blocks. (Modifying in blocks / model synthesis)
+ *
+ * The blocks are solved one at a time in scan order, by a Solver. Every block is solved with a
+ * one Cell wide ring around it. Ring Cells that are already solved are fixed to their patterns,
+ * the others are solved freely and thrown away. Cells inside a block are always solved again,
+ * so the overlap with earlier blocks is modified to fit the new block.
+ *
+ * A contradiction only restarts the block it occurred in. A block that fails is solved again,
+ * grown into its solved surroundings. That frees the ring Cells that made it unsatisfiable.
+ * The working set and the cost of a contradiction are bounded by the block size,
+ * not the size of the output.
+ *
+ * Constraints of the output are translated to every block, and its ring.
+ *
+ * In parallel, the blocks are colored by the parity of their column and row. Blocks of the same color
+ * are at least one Cell apart (overlap < block_size / 2), so none of them reads or writes the Cells
+ * of another. Every color (phase) is solved concurrently, one phase after the other. A block that fails
+ * in its phase is rolled back (nothing is written), and solved again grown, alone, before the next phase.
+ * Every block has its own seed, so the result does not depend on the number of threads.
+ *
+ */
+
+
+final class BlockSolver {
+    
+    private static final int MAX_GROWTH = 3; // times a failed block is grown before giving up
+    
+    private final int[][] output;
+    private final int[][] solved_patterns; // [y][x] the pattern of every solved Cell of the output, or -1
+    private final int width;
+    private final int height;
+    private final boolean wrap_around;
+    private final ProgressBatch progress; // publishes the Cells of solved blocks, or null
+    private final Constraints constraints; // the pinned Cells of the output, or null
+    
+    
+    /**
+     * @param output storage
+     * @param wrap_around If you want the results edges connected
+     * @param progress receives the Cells of every solved block (sequential generate only), or null
+     * @param constraints the pinned Cells of the output, or null
+     */
+    BlockSolver(int[][] output, boolean wrap_around, ProgressListener progress, Constraints constraints) {
+        this.output = output;
+        this.width = output[0].length;
+        this.height = output.length;
+        this.wrap_around = wrap_around;
+        this.progress = progress == null ? null : new ProgressBatch(progress);
+        this.constraints = constraints;
+        if (constraints != null && constraints.cells() != (long) width * height) {
+            throw new IllegalArgumentException("Constraints for " + constraints.cells() + " cells, the output has " + (long) width * height);
+        } // One row per row of the output. Only the blocks are limited to Integer.MAX_VALUE Cells, not the output
+        this.solved_patterns = new int[height][width];
+        for (int[] row : solved_patterns) Arrays.fill(row,-1);
+    }
+    
+    /**
+     * See WFC.generate_in_blocks
+     * @param solver solves the blocks (with its own settings and random generator)
+     * @param block_size width and height of a block
+     * @param overlap cells shared by adjacent blocks [0 -> block_size)
+     * @param failure_limit tolerated collisions before termination (per block)
+     * @return true if successful
+     */
+    boolean generate(Solver solver, int block_size, int overlap, int failure_limit) {
+        validate(block_size, overlap);
+        Workspace workspace = new Workspace(solver);
+        int step = block_size - overlap;
+        int growth_step = Math.max(1, overlap);
+        for (int y = 0; ; y += step) {
+            int y1 = Math.min(y + block_size, height);
+            for (int x = 0; ; x += step) {
+                int x1 = Math.min(x + block_size, width);
+                boolean solved = solve_block(workspace, x, y, x1, y1, failure_limit);
+                for (int growth = 1; !solved && growth <= MAX_GROWTH; growth++) {
+                    int g = growth * growth_step;
+                    solved = solve_block(workspace, x - g, y - g, x1 + g, y1 + g, failure_limit);
+                } if (!solved) return false;
+                if (x1 == width) break;
+            } if (y1 == height) break;
+        } return true;
+    }
+    
+    /**
+     * See WFC.generate_parallel
+     * @param patterns the patterns shared by the Solvers
+     * @param propagation propagation strategy of the Solvers
+     * @param backtracking backtracking of the Solvers
+     * @param listener listener of the Solvers, or null
+     * @param seed the seed of every block is derived from it
+     * @param block_size width and height of a block
+     * @param overlap cells shared by adjacent blocks [0 -> block_size / 2)
+     * @param failure_limit tolerated collisions before termination (per block)
+     * @param executor solves the blocks of a phase
+     * @return true if successful
+     */
+    boolean generate_parallel(Patterns patterns, WFC.Propagation propagation, boolean backtracking, GenerationListener listener,
+                              int seed, int block_size, int overlap, int failure_limit, ExecutorService executor) {
+        validate(block_size, overlap);
+        if (overlap * 2 >= block_size) {
+            throw new IllegalArgumentException("Parallel blocks require overlap < block_size / 2: " + overlap);
+        } int step = block_size - overlap;
+        int growth_step = Math.max(1, overlap);
+        int columns = block_count(width, block_size, step);
+        int rows = block_count(height, block_size, step);
+        // Idle Solvers. Any number of blocks are solved by the same few Solvers
+        ConcurrentLinkedQueue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+        for (int phase_y = 0; phase_y < 3; phase_y++) {
+            for (int phase_x = 0; phase_x < 3; phase_x++) {
+                List<int[]> blocks = new ArrayList<>();
+                for (int row = 0; row < rows; row++) {
+                    if (phase(row, rows) != phase_y) continue;
+                    for (int column = 0; column < columns; column++) {
+                        if (phase(column, columns) != phase_x) continue;
+                        int x = column * step;
+                        int y = row * step;
+                        blocks.add(new int[] {x, y, Math.min(x + block_size, width), Math.min(y + block_size, height)});
+                    }
+                } if (blocks.isEmpty()) continue;
+                List<Callable<Boolean>> tasks = new ArrayList<>(blocks.size());
+                for (int[] block : blocks) {
+                    tasks.add(() -> {
+                        Workspace workspace = workspaces.poll();
+                        if (workspace == null) {
+                            Solver solver = new Solver(patterns, seed);
+                            solver.set_propagation(propagation);
+                            solver.set_backtracking(backtracking);
+                            solver.set_listener(listener);
+                            workspace = new Workspace(solver);
+                        } try { workspace.solver.set_noise_seed(block_seed(seed, block[0], block[1]));
+                            workspace.solver.reset_noise_position();
+                            return solve_block(workspace, block[0], block[1], block[2], block[3], failure_limit);
+                        } finally { workspaces.add(workspace); }
+                    });
+                } boolean[] results = WFC.invoke_all(tasks, executor);
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i]) continue;
+                    int[] block = blocks.get(i);
+                    Workspace workspace = workspaces.peek();
+                    boolean solved = false;
+                    for (int growth = 1; !solved && growth <= MAX_GROWTH; growth++) {
+                        int g = growth * growth_step;
+                        workspace.solver.set_noise_seed(block_seed(seed, block[0], block[1]) + growth);
+                        workspace.solver.reset_noise_position();
+                        solved = solve_block(workspace, block[0] - g, block[1] - g, block[2] + g, block[3] + g, failure_limit);
+                    } if (!solved) return false;
+                }
+            }
+        } return true;
+    }
+    
+    /**
+     * Solves the block, constrained by the solved Cells around it.
+     * On success, the patterns and values of the block are written to the output.
+     * The block is clipped to the output, or wraps around it if wrap_around.
+     * @return true if successful
+     */
+    private boolean solve_block(Workspace workspace, int x0, int y0, int x1, int y1, int failure_limit) {
+        if (wrap_around) { // The ring must not wrap around onto the block itself
+            x1 = Math.min(x1, x0 + width - 2);
+            y1 = Math.min(y1, y0 + height - 2);
+        } else {
+            x0 = Math.max(x0, 0);
+            y0 = Math.max(y0, 0);
+            x1 = Math.min(x1, width);
+            y1 = Math.min(y1, height);
+        } int block_width = x1 - x0;
+        int block_height = y1 - y0;
+        int local_width = block_width + 2;
+        int local_height = block_height + 2;
+        int[][] block_output = workspace.block_output(local_width, local_height);
+        int[] constraints = workspace.constraints;
+        Arrays.fill(constraints,-1);
+        Constraints local_constraints = this.constraints == null ? null : workspace.local_constraints(local_width, local_height);
+        if (local_constraints != null) { // the block and its ring
+            for (int ly = 0; ly < local_height; ly++) {
+                for (int lx = 0; lx < local_width; lx++) {
+                    int wx = x0 - 1 + lx;
+                    int wy = y0 - 1 + ly;
+                    int[] values = null;
+                    if (wrap_around) values = this.constraints.allowed_values(Math.floorMod(wy, height) * width + Math.floorMod(wx, width));
+                    else if (wx >= 0 && wx < width && wy >= 0 && wy < height) values = this.constraints.allowed_values(wy * width + wx);
+                    local_constraints.set(ly * local_width + lx, values);
+                }
+            }
+        }
+        for (int ly = 0; ly < local_height; ly++) {
+            boolean ring_row = ly == 0 || ly == local_height - 1;
+            for (int lx = 0; lx < local_width; lx += (ring_row ? 1 : local_width - 1)) {
+                int wx = x0 - 1 + lx;
+                int wy = y0 - 1 + ly;
+                if (wrap_around) {
+                    wx = Math.floorMod(wx, width);
+                    wy = Math.floorMod(wy, height);
+                } else if (wx < 0 || wx == width || wy < 0 || wy == height) continue;
+                constraints[ly * local_width + lx] = solved_patterns[wy][wx];
+            }
+        } Solver solver = workspace.solver;
+        solver.set_constraints(local_constraints);
+        if (!solver.generate(block_output, failure_limit, false, constraints)) return false;
+        for (int ly = 1; ly <= block_height; ly++) {
+            int wy = Math.floorMod(y0 - 1 + ly, height);
+            for (int lx = 1; lx <= block_width; lx++) {
+                int wx = Math.floorMod(x0 - 1 + lx, width);
+                solved_patterns[wy][wx] = solver.pattern_of(ly * local_width + lx);
+                output[wy][wx] = block_output[ly][lx];
+                if (progress != null) progress.add(wx, wy, block_output[ly][lx]);
+            }
+        } if (progress != null) progress.flush();
+        return true;
+    }
+    
+    private void validate(int block_size, int overlap) {
+        if (block_size < 1 || overlap < 0 || overlap >= block_size) {
+            throw new IllegalArgumentException("Invalid block size / overlap: " + block_size + " / " + overlap);
+        } if (wrap_around && (block_size + 2 > width || block_size + 2 > height)) {
+            throw new IllegalArgumentException("Wrapping output must be at least block_size + 2 in both dimensions");
+        }
+    }
+    
+    /**
+     * Blocks alternate between phase 0 and 1. When wrapping around, an even last block
+     * would be next to the first block (phase 0), so it gets phase 2.
+     * @param index column or row of the block
+     * @param count blocks in the row or column
+     * @return phase [0 -> 2]
+     */
+    private int phase(int index, int count) {
+        if (wrap_around && index == count - 1 && index > 0 && (index & 1) == 0) return 2;
+        return index & 1;
+    }
+    
+    /**
+     * @return number of blocks needed to cover the length (same as the scan order of generate)
+     */
+    private static int block_count(int length, int block_size, int step) {
+        int count = 1;
+        for (int start = 0; start + block_size < length; start += step) count++;
+        return count;
+    }
+    
+    private static int block_seed(int seed, int x, int y) {
+        int h = seed;
+        h = (h ^ x) * 0x9E3779B1;
+        h = (h ^ y) * 0x85EBCA77;
+        return h ^ (h >>> 16);
+    }
+    
+    /*
+        A Solver and the buffers of the block it's solving. Owned by one thread at a time.
+     */
+    
+    private static final class Workspace {
+        final Solver solver;
+        int[][] block_output; // [block height + 2][block width + 2] block and its ring
+        int[] constraints; // [block cell] fixed ring patterns, or -1
+        Constraints local_constraints; // the pinned Cells of the block and its ring
+        Workspace(Solver solver) { this.solver = solver; }
+        int[][] block_output(int local_width, int local_height) {
+            if (block_output == null || block_output.length != local_height || block_output[0].length != local_width) {
+                block_output = new int[local_height][local_width];
+                constraints = new int[local_width * local_height];
+            } return block_output;
+        }
+        Constraints local_constraints(int local_width, int local_height) {
+            if (local_constraints == null || local_constraints.cells() != local_width * local_height) {
+                local_constraints = new Constraints(local_width, local_height);
+            } return local_constraints;
+        }
+    }
+}
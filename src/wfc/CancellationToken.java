@@ -0,0 +1,18 @@
+package wfc;
+
+/**
+ *
+ * Cancels the generate calls it's passed to, from any thread. A running call returns CANCELLED
+ * within a few hundred propagation steps. Once cancelled, a token stays cancelled.
+ *
+ */
+
+
+public final class CancellationToken {
+    
+    private volatile boolean cancelled;
+    
+    public void cancel() { cancelled = true; }
+    
+    public boolean is_cancelled() { return cancelled; }
+}
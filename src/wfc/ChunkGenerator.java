@@ -0,0 +1,285 @@
+package wfc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Generates an unbounded world as fixed size chunks, on demand.
+ *
+ * A chunk is solved on its own, with a one Cell wide ring around it. Ring Cells that belong to
+ * chunks already generated are fixed to the patterns those chunks collapsed to. So every new chunk
+ * connects seamlessly to its existing neighbours (cardinal and diagonal). The rest of the ring
+ * is solved freely and thrown away. It only makes sure the edges of the chunk can be continued.
+ *
+ * Neighbours solved apart from each other can pin rings that can't be completed together.
+ * (Where two neighbours meet, I.e. the corners) That is found in the constraint pass, before any
+ * random decision, so a new attempt can't fix it. The pins that contradict the others are then
+ * relaxed, one at a time: to any pattern with the same value (the Cell still looks the same),
+ * or freed if that contradicts too. The edges are kept over the corners, and the chunk is solved again.
+ * The chunk connects to its neighbours everywhere but at the relaxed Cells.
+ *
+ * Finished chunks are streamed to the ChunkConsumer. The generator only keeps the border patterns
+ * of the most recently used chunks (the window). When the window is full, the least recently used
+ * chunk is forgotten, and a chunk generated next to it later will not be constrained by it.
+ * So the window should hold every chunk that can still get a new neighbour. I.e. generating row by row,
+ * at least one row of chunks + 1.
+ *
+ * Memory is proportional to the chunk size and the window capacity, not to the size of the world.
+ * Every chunk gets its own seed derived from the world seed and its coordinates.
+ * The propagation, backtracking and generation listener of the WFC are used.
+ *
+ * Not thread safe.
+ *
+ */
+
+
+public class ChunkGenerator {
+    
+    
+    /**
+     * Receives every chunk as it's finished
+     */
+    public interface ChunkConsumer {
+        /**
+         * @param chunk_x chunk x coordinate
+         * @param chunk_y chunk y coordinate
+         * @param values [chunk_height][chunk_width] the values of the chunk. Owned by the consumer
+         */
+        void accept(int chunk_x, int chunk_y, int[][] values);
+    }
+    
+    private final WFC wfc;
+    private final Solver solver;
+    private final ChunkConsumer consumer;
+    private final Map<Long,Border> window; // border patterns of the most recently used chunks
+    private final int[][] local_output; // [chunk_height + 2][chunk_width + 2] chunk and its ring
+    private final int[] constraints; // [cell] fixed ring patterns, or -1
+    private final int[] requested; // [cell] the ring patterns of the neighbours, or -1 (while relaxing)
+    private final int[] ring; // the ring Cells, edges first, then the corners (the order pins are kept in)
+    private final int[] ring_pins; // the pinned ring Cells, in ring order (while relaxing)
+    private final Constraints relaxed; // ring Cells relaxed to the value of their pattern
+    private final int chunk_width;
+    private final int chunk_height;
+    private final int seed;
+    
+    
+    /**
+     * @param wfc the patterns and settings to generate from
+     * @param chunk_width width of a chunk in cells
+     * @param chunk_height height of a chunk in cells
+     * @param window_capacity max number of chunks remembered for constraining new chunks
+     * @param seed world seed
+     * @param consumer receives the chunks as they are finished
+     */
+    public ChunkGenerator(WFC wfc, int chunk_width, int chunk_height, int window_capacity, int seed, ChunkConsumer consumer) {
+        if (chunk_width < 1 || chunk_height < 1) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunk_width + "x" + chunk_height);
+        } if (window_capacity < 1) {
+            throw new IllegalArgumentException("Invalid window capacity: " + window_capacity);
+        } this.wfc = wfc;
+        this.solver = new Solver(wfc.patterns(),seed);
+        this.consumer = consumer;
+        this.chunk_width = chunk_width;
+        this.chunk_height = chunk_height;
+        this.seed = seed;
+        this.local_output = new int[chunk_height + 2][chunk_width + 2];
+        this.constraints = new int[(chunk_width + 2) * (chunk_height + 2)];
+        this.requested = new int[constraints.length];
+        this.ring = ring_cells(chunk_width,chunk_height);
+        this.ring_pins = new int[ring.length];
+        this.relaxed = new Constraints(chunk_width + 2,chunk_height + 2);
+        this.window = new LinkedHashMap<>(16,0.75f,true) {
+            protected boolean removeEldestEntry(Map.Entry<Long,Border> eldest) {
+                return size() > window_capacity;
+            }
+        };
+    }
+    
+    /**
+     * Generates the chunk, constrained by its neighbours in the window, and streams it to the consumer.
+     * Does nothing if the chunk is already in the window. If the pins of the neighbours contradict each
+     * other, the contradicting ones are relaxed (See ChunkGenerator), and the chunk is solved again.
+     * A failed chunk is not streamed, nor put in the window.
+     * @param chunk_x chunk x coordinate
+     * @param chunk_y chunk y coordinate
+     * @param failure_limit tolerated collisions before termination
+     * @return true if successful (or already generated)
+     */
+    public boolean generate(int chunk_x, int chunk_y, int failure_limit) {
+        long key = key(chunk_x,chunk_y);
+        if (window.containsKey(key)) return true;
+        int local_width = chunk_width + 2;
+        Arrays.fill(constraints,-1);
+        Border south = window.get(key(chunk_x,chunk_y - 1));
+        Border north = window.get(key(chunk_x,chunk_y + 1));
+        Border west = window.get(key(chunk_x - 1,chunk_y));
+        Border east = window.get(key(chunk_x + 1,chunk_y));
+        Border south_west = window.get(key(chunk_x - 1,chunk_y - 1));
+        Border south_east = window.get(key(chunk_x + 1,chunk_y - 1));
+        Border north_west = window.get(key(chunk_x - 1,chunk_y + 1));
+        Border north_east = window.get(key(chunk_x + 1,chunk_y + 1));
+        for (int x = 0; x < chunk_width; x++) {
+            if (south != null) constraints[x + 1] = south.top[x];
+            if (north != null) constraints[(chunk_height + 1) * local_width + x + 1] = north.bottom[x];
+        } for (int y = 0; y < chunk_height; y++) {
+            if (west != null) constraints[(y + 1) * local_width] = west.right[y];
+            if (east != null) constraints[(y + 1) * local_width + chunk_width + 1] = east.left[y];
+        } if (south_west != null) constraints[0] = south_west.top[chunk_width - 1];
+        if (south_east != null) constraints[chunk_width + 1] = south_east.top[0];
+        if (north_west != null) constraints[(chunk_height + 1) * local_width] = north_west.bottom[chunk_width - 1];
+        if (north_east != null) constraints[(chunk_height + 1) * local_width + chunk_width + 1] = north_east.bottom[0];
+        solver.set_propagation(wfc.propagation());
+        solver.set_backtracking(wfc.backtracking());
+        solver.set_listener(wfc.generation_listener());
+        solver.set_constraints(null);
+        if (!solve(chunk_x,chunk_y,failure_limit)) {
+            if (!relax_contradicting_pins() || !solve(chunk_x,chunk_y,failure_limit)) return false;
+        }
+        Border border = new Border(chunk_width,chunk_height);
+        for (int x = 0; x < chunk_width; x++) {
+            border.bottom[x] = solver.pattern_of(local_width + x + 1);
+            border.top[x] = solver.pattern_of(chunk_height * local_width + x + 1);
+        } for (int y = 0; y < chunk_height; y++) {
+            border.left[y] = solver.pattern_of((y + 1) * local_width + 1);
+            border.right[y] = solver.pattern_of((y + 1) * local_width + chunk_width);
+        } window.put(key,border);
+        int[][] values = new int[chunk_height][chunk_width];
+        for (int y = 0; y < chunk_height; y++) {
+            System.arraycopy(local_output[y + 1],1,values[y],0,chunk_width);
+        } consumer.accept(chunk_x,chunk_y,values);
+        return true;
+    }
+    
+    /**
+     * Solves the chunk and its ring, with the chunk seed
+     * @return true if successful
+     */
+    private boolean solve(int chunk_x, int chunk_y, int failure_limit) {
+        solver.set_noise_seed(chunk_seed(chunk_x,chunk_y));
+        solver.reset_noise_position();
+        return solver.generate(local_output,failure_limit,false,constraints);
+    }
+    
+    /**
+     * Relaxes the ring pins that contradict the others, in the constraint pass.
+     * The pins are kept in ring order. The first pin that contradicts the ones kept before it
+     * is found by bisection, relaxed, and the rest is checked again. Until the rest is consistent.
+     * @return true if any pin was relaxed (false if the pins don't contradict each other)
+     */
+    private boolean relax_contradicting_pins() {
+        relaxed.clear();
+        int pins = 0;
+        for (int cell : ring) {
+            if (constraints[cell] >= 0) ring_pins[pins++] = cell;
+        } System.arraycopy(constraints,0,requested,0,constraints.length);
+        boolean relaxing = false;
+        int kept = 0; // the pins before are kept (or relaxed)
+        while (!pins_consistent(kept,pins,pins)) {
+            int low = kept;
+            int high = pins - 1; // the first pin that contradicts the kept ones
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (pins_consistent(kept,middle + 1,pins)) low = middle + 1;
+                else high = middle;
+            } int cell = ring_pins[low];
+            constraints[cell] = -1;
+            relaxed.allow_cell(cell,wfc.patterns().value_of(requested[cell]));
+            solver.set_constraints(relaxed);
+            if (!pins_consistent(kept,low,pins)) relaxed.free_cell(cell);
+            kept = low + 1;
+            relaxing = true;
+        } if (relaxed.constrained() == 0) solver.set_constraints(null);
+        return relaxing;
+    }
+    
+    /**
+     * Runs the constraint pass with the pins before kept, and the pins [kept -> end) of ring_pins.
+     * The pins [end -> pins) are left free.
+     * @return false if they contradict each other
+     */
+    private boolean pins_consistent(int kept, int end, int pins) {
+        for (int i = kept; i < pins; i++) {
+            int cell = ring_pins[i];
+            constraints[cell] = i < end ? requested[cell] : -1;
+        } return solver.consistent(local_output,constraints);
+    }
+    
+    /**
+     * Generates every chunk in the region, row by row (from min_y to max_y), streaming each one as it's finished.
+     * @param min_chunk_x first chunk x coordinate (inclusive)
+     * @param min_chunk_y first chunk y coordinate (inclusive)
+     * @param max_chunk_x last chunk x coordinate (inclusive)
+     * @param max_chunk_y last chunk y coordinate (inclusive)
+     * @param failure_limit tolerated collisions before termination (per chunk)
+     * @return the number of chunks that failed
+     */
+    public int generate_region(int min_chunk_x, int min_chunk_y, int max_chunk_x, int max_chunk_y, int failure_limit) {
+        int failed = 0;
+        for (int chunk_y = min_chunk_y; chunk_y <= max_chunk_y; chunk_y++) {
+            for (int chunk_x = min_chunk_x; chunk_x <= max_chunk_x; chunk_x++) {
+                if (!generate(chunk_x,chunk_y,failure_limit)) failed++;
+            }
+        } return failed;
+    }
+    
+    /**
+     * @return true if the chunk is in the window (generated, and not yet forgotten)
+     */
+    public boolean contains(int chunk_x, int chunk_y) {
+        return window.containsKey(key(chunk_x,chunk_y));
+    }
+    
+    public int chunk_width() { return chunk_width; }
+    
+    public int chunk_height() { return chunk_height; }
+    
+    /**
+     * @return the ring Cells of the local output [chunk_height + 2][chunk_width + 2].
+     * The edges (bottom, left, right, top), then the corners
+     */
+    private static int[] ring_cells(int chunk_width, int chunk_height) {
+        int local_width = chunk_width + 2;
+        int top = (chunk_height + 1) * local_width;
+        int[] cells = new int[2 * chunk_width + 2 * chunk_height + 4];
+        int i = 0;
+        for (int x = 1; x <= chunk_width; x++) cells[i++] = x;
+        for (int y = 1; y <= chunk_height; y++) cells[i++] = y * local_width;
+        for (int y = 1; y <= chunk_height; y++) cells[i++] = y * local_width + chunk_width + 1;
+        for (int x = 1; x <= chunk_width; x++) cells[i++] = top + x;
+        cells[i++] = 0;
+        cells[i++] = chunk_width + 1;
+        cells[i++] = top;
+        cells[i] = top + chunk_width + 1;
+        return cells;
+    }
+    
+    private int chunk_seed(int chunk_x, int chunk_y) {
+        int h = seed;
+        h = (h ^ chunk_x) * 0x9E3779B1;
+        h = (h ^ chunk_y) * 0x85EBCA77;
+        return h ^ (h >>> 16);
+    }
+    
+    private static long key(int chunk_x, int chunk_y) {
+        return ((long) chunk_x << 32) | (chunk_y & 0xFFFF_FFFFL);
+    }
+    
+    /*
+        The patterns of the outermost Cells of a chunk. The corners are part of the rows.
+     */
+    
+    private static final class Border {
+        final int[] bottom; // y = 0
+        final int[] top; // y = chunk_height - 1
+        final int[] left; // x = 0
+        final int[] right; // x = chunk_width - 1
+        Border(int chunk_width, int chunk_height) {
+            bottom = new int[chunk_width];
+            top = new int[chunk_width];
+            left = new int[chunk_height];
+            right = new int[chunk_height];
+        }
+    }
+}
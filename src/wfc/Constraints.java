@@ -0,0 +1,200 @@
+package wfc;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Cells of an output pinned before generating. (Borders, roads, placed tiles... in-painting)
+ *
+ * A constrained Cell can only become one of its allowed values. A fixed Cell has one allowed value.
+ * Only patterns with an allowed value are kept in the Cell, the rest are removed up front.
+ * All constraints are then propagated together, in one pass, before the first Cell is collapsed.
+ * The pinned Cells and everything they rule out around them are settled before any random decision,
+ * so they shrink the search instead of being collapsed (and contradicted) one at a time.
+ * Constraints are applied again on every attempt, and never undone by backtracking.
+ *
+ * Cells are indexed like the output: y * width + x for 2D outputs, (z * height + y) * width + x
+ * for volumes, and the Cell index of the Topology for graphs.
+ *
+ * Values no pattern has, or constraints that contradict each other, fail the generation.
+ * (CONTRADICTION_LIMIT, without using the failure limit)
+ *
+ */
+
+
+public final class Constraints {
+    
+    private final int[][] allowed_values; // [cell] sorted allowed values, or null if free
+    private final int width;
+    private final int height;
+    private final int depth;
+    private int constrained; // number of constrained Cells
+    
+    
+    /**
+     * Constraints of a 2D output
+     * @param width output width
+     * @param height output height
+     */
+    public Constraints(int width, int height) {
+        this(width, height, 1);
+    }
+    
+    /**
+     * Constraints of a volume
+     * @param width output width
+     * @param height output height
+     * @param depth output depth
+     */
+    public Constraints(int width, int height, int depth) {
+        if (width < 1 || height < 1 || depth < 1) {
+            throw new IllegalArgumentException("Invalid size: " + width + "x" + height + "x" + depth);
+        } long cells = (long) width * height * depth;
+        if (cells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Output too large: " + width + "x" + height + "x" + depth);
+        } this.allowed_values = new int[(int) cells][];
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+    }
+    
+    /**
+     * Constraints of a Topology output
+     * @param topology the Cells of the output
+     */
+    public Constraints(Topology topology) {
+        this(topology.cells(), 1, 1);
+    }
+    
+    /**
+     * In-painting. Every Cell of the template that is not free is fixed to its value.
+     * @param template [height][width] values to keep
+     * @param free_value the value of the Cells to generate
+     */
+    public static Constraints from_template(int[][] template, int free_value) {
+        Constraints constraints = new Constraints(template[0].length, template.length);
+        for (int y = 0; y < template.length; y++) {
+            for (int x = 0; x < template[0].length; x++) {
+                if (template[y][x] != free_value) constraints.fix(x, y, template[y][x]);
+            }
+        } return constraints;
+    }
+    
+    /**
+     * Fixes the Cell to the value
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void fix(int x, int y, int value) {
+        fix_cell(cell(x, y, 0), value);
+    }
+    
+    /**
+     * Fixes the Cell of a volume to the value
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void fix(int x, int y, int z, int value) {
+        fix_cell(cell(x, y, z), value);
+    }
+    
+    /**
+     * Fixes the Cell to the value
+     * @param cell index of the Cell
+     * @param value the value of the Cell
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void fix_cell(int cell, int value) {
+        set(cell, new int[] {value});
+    }
+    
+    /**
+     * Restricts the Cell to any of the values
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void allow(int x, int y, int... values) {
+        allow_cell(cell(x, y, 0), values);
+    }
+    
+    /**
+     * Restricts the Cell of a volume to any of the values
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void allow(int x, int y, int z, int... values) {
+        allow_cell(cell(x, y, z), values);
+    }
+    
+    /**
+     * Restricts the Cell to any of the values
+     * @param cell index of the Cell
+     * @param values the allowed values (at least one)
+     * @throws IllegalArgumentException if the Cell is outside the output, or no value is allowed
+     */
+    public void allow_cell(int cell, int... values) {
+        if (values.length == 0) throw new IllegalArgumentException("No allowed values");
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        set(cell, sorted);
+    }
+    
+    /**
+     * Frees the Cell
+     * @param cell index of the Cell
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    public void free_cell(int cell) {
+        set(cell, null);
+    }
+    
+    /**
+     * Frees every Cell
+     */
+    public void clear() {
+        Arrays.fill(allowed_values, null);
+        constrained = 0;
+    }
+    
+    /**
+     * @return the allowed values of the Cell (Do not modify), or null if free
+     */
+    public int[] allowed_values(int cell) {
+        return allowed_values[cell];
+    }
+    
+    public boolean is_constrained(int cell) {
+        return allowed_values[cell] != null;
+    }
+    
+    /**
+     * @return number of constrained Cells
+     */
+    public int constrained() { return constrained; }
+    
+    /**
+     * @return number of Cells of the output
+     */
+    public int cells() { return allowed_values.length; }
+    
+    /**
+     * @return the index of the Cell (x, y, z)
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    private int cell(int x, int y, int z) {
+        if (x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth) {
+            throw new IllegalArgumentException("Cell (" + x + ", " + y + ", " + z + ") outside the output: " + width + "x" + height + "x" + depth);
+        } return (z * height + y) * width + x;
+    }
+    
+    /**
+     * @param cell index of the Cell
+     * @param values sorted allowed values (may be shared with other Constraints), or null to free the Cell
+     * @throws IllegalArgumentException if the Cell is outside the output
+     */
+    void set(int cell, int[] values) {
+        if (cell < 0 || cell >= allowed_values.length) {
+            throw new IllegalArgumentException("Cell " + cell + " outside the output: " + allowed_values.length + " cells");
+        }
+        if (allowed_values[cell] != null) constrained--;
+        if (values != null) constrained++;
+        allowed_values[cell] = values;
+    }
+    
+}
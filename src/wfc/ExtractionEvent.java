@@ -0,0 +1,24 @@
+package wfc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ *
+ * Flight Recorder event of extracting the patterns from a training input, or loading them from a catalog.
+ *
+ */
+
+
+@Name("wfc.Extraction")
+@Label("Pattern Extraction")
+@Category("Wave Function Collapse")
+@Description("Patterns extracted from a training input, or loaded from a catalog")
+final class ExtractionEvent extends jdk.jfr.Event {
+    
+    @Label("Catalog") boolean catalog;
+    @Label("Pattern Size") int pattern_size;
+    @Label("Patterns") int patterns;
+}
@@ -0,0 +1,38 @@
+package wfc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ *
+ * Flight Recorder event of a generate call. Committed when the call returns, if the event
+ * is enabled in the recording. The fields are the same as the GenerationMetrics.
+ *
+ */
+
+
+@Name("wfc.Generation")
+@Label("Generation")
+@Category("Wave Function Collapse")
+@Description("A generate call (one output, or one block)")
+final class GenerationEvent extends jdk.jfr.Event {
+    
+    @Label("Success") boolean success;
+    @Label("Status") String status;
+    @Label("Width") int width;
+    @Label("Height") int height;
+    @Label("Depth") int depth;
+    @Label("Patterns") int patterns;
+    @Label("Propagation") String propagation;
+    @Label("Collisions") int collisions;
+    @Label("Restarts") int restarts;
+    @Label("Collapsed Cells") long collapsed_cells;
+    @Label("Propagation Steps") long propagation_steps;
+    @Label("Bans") long bans;
+    @Label("Peak Stack Depth") int peak_stack_depth;
+    @Label("Propagation Time") @Timespan long propagation_time;
+    @Label("Restart Time") @Timespan long restart_time;
+}
@@ -0,0 +1,21 @@
+package wfc;
+
+/**
+ *
+ * Receives the metrics of every generate call, when it returns. Set with WFC.set_generation_listener.
+ * Nothing is counted or timed while no listener is set (and no Flight Recorder recording is running).
+ *
+ * Generations that run concurrently (generate_batch, generate_parallel) call the listener
+ * from their own threads, once per output or block. The listener must be thread safe for those.
+ *
+ */
+
+
+@FunctionalInterface
+public interface GenerationListener {
+    
+    /**
+     * @param metrics the metrics of the finished generate call
+     */
+    void generation_finished(GenerationMetrics metrics);
+}
@@ -0,0 +1,99 @@
+package wfc;
+
+/**
+ *
+ * What a single generate call spent its time on. (One output, or one block of generate_in_blocks)
+ *
+ * status: how the call ended (success, contradiction limit, timed out or cancelled)
+ * collisions: contradictions reached (restarts + backtracks)
+ * restarts: times the whole output was reset after a contradiction
+ * collapsed_cells: random decisions. Cells collapsed by propagation or constraints are not counted
+ * propagation_steps: Cells (BITSET_UNION) or banned options (SUPPORT_COUNT) popped off the propagation stack
+ * bans: options removed from Cells, by decisions, constraints and propagation
+ * peak_stack_depth: the most entries on the propagation stack at once
+ *
+ * Time in nanoseconds. Propagation is the time spent propagating (including constraints).
+ * Restart is the time spent resetting the Wave after contradictions, or rewinding decisions when backtracking.
+ * Extraction is the time it took to extract (or load) the patterns, once for every WFC.
+ *
+ */
+
+
+public final class GenerationMetrics {
+    
+    private final GenerationStatus status;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int collisions;
+    private final int restarts;
+    private final long collapsed_cells;
+    private final long propagation_steps;
+    private final long bans;
+    private final int peak_stack_depth;
+    private final long extraction_nanos;
+    private final long propagation_nanos;
+    private final long restart_nanos;
+    private final long total_nanos;
+    
+    
+    GenerationMetrics(GenerationStatus status, int width, int height, int depth, int collisions, int restarts,
+                      long collapsed_cells, long propagation_steps, long bans, int peak_stack_depth,
+                      long extraction_nanos, long propagation_nanos, long restart_nanos, long total_nanos) {
+        this.status = status;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.collisions = collisions;
+        this.restarts = restarts;
+        this.collapsed_cells = collapsed_cells;
+        this.propagation_steps = propagation_steps;
+        this.bans = bans;
+        this.peak_stack_depth = peak_stack_depth;
+        this.extraction_nanos = extraction_nanos;
+        this.propagation_nanos = propagation_nanos;
+        this.restart_nanos = restart_nanos;
+        this.total_nanos = total_nanos;
+    }
+    
+    public boolean success() { return status == GenerationStatus.SUCCESS; }
+    
+    public GenerationStatus status() { return status; }
+    
+    public int width() { return width; }
+    
+    public int height() { return height; }
+    
+    /**
+     * @return the depth of a VoxelWFC output, 1 for 2D outputs
+     */
+    public int depth() { return depth; }
+    
+    public int collisions() { return collisions; }
+    
+    public int restarts() { return restarts; }
+    
+    public long collapsed_cells() { return collapsed_cells; }
+    
+    public long propagation_steps() { return propagation_steps; }
+    
+    public long bans() { return bans; }
+    
+    public int peak_stack_depth() { return peak_stack_depth; }
+    
+    public long extraction_nanos() { return extraction_nanos; }
+    
+    public long propagation_nanos() { return propagation_nanos; }
+    
+    public long restart_nanos() { return restart_nanos; }
+    
+    public long total_nanos() { return total_nanos; }
+    
+    public String toString() {
+        return "GenerationMetrics{" + width + "x" + height + (depth > 1 ? "x" + depth : "") + " " + status +
+        ", collisions=" + collisions + ", restarts=" + restarts + ", collapsed_cells=" + collapsed_cells +
+        ", propagation_steps=" + propagation_steps + ", bans=" + bans + ", peak_stack_depth=" + peak_stack_depth +
+        ", extraction_ms=" + extraction_nanos / 1e6 + ", propagation_ms=" + propagation_nanos / 1e6 +
+        ", restart_ms=" + restart_nanos / 1e6 + ", total_ms=" + total_nanos / 1e6 + "}";
+    }
+}
@@ -0,0 +1,17 @@
+package wfc;
+
+/**
+ *
+ * How a generate call ended.
+ *
+ * SUCCESS: every Cell collapsed without contradiction
+ * CONTRADICTION_LIMIT: failure_limit collisions reached (or the fixed Cells contradict each other)
+ * TIMED_OUT: the deadline passed
+ * CANCELLED: the CancellationToken was cancelled
+ *
+ * On anything but SUCCESS the output is partially written.
+ *
+ */
+
+
+public enum GenerationStatus { SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT, CANCELLED }
@@ -1,17 +1,43 @@
 package wfc;
 
 import wfc.utility.BitSet;
+import wfc.utility.PackedKeyMap;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import java.util.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
  *
  * Takes any discrete input (could be colors, tiles or any other values), gather all
- * unique 3x3-patterns (including rotations and reflections) occurring in the input.
- * Then for every pattern, gather frequency, center value and all possible adjacent pattern
+ * unique NxN-patterns (including rotations and reflections) occurring in the input.
+ * Then for every pattern, gather frequency, value and all possible adjacent pattern
  * for each cardinal direction.
  *
+ * The value of a pattern is the value of its anchor cell, at ((N - 1) / 2, (N - 1) / 2) from
+ * the bottom left. I.e. the center for odd N. Two patterns are adjacent in a direction if they
+ * are equal where they overlap, when one is shifted one cell in that direction.
+ *
+ * While extracting, the input values are replaced by their index in a palette of the unique values.
+ * A pattern is packed into (N * N * bits per palette index) bits of a long[] key, and counted
+ * in a primitive open addressing map. Patterns are ordered by frequency, then by first occurrence.
+ *
+ * 3D inputs (voxels) give NxNxN patterns, adjacent in 6 directions [N,E,S,W,U,D]. See extract_volume.
+ *
+ * The patterns can be written to a binary catalog, and loaded (memory-mapped) without extracting them again.
+ * (2D patterns only)
+ *
+ * Immutable after construction. One Patterns object can be shared by any number of threads.
+ *
  * @author Frederik Dahl
  * 01/05/2023
  */
@@ -19,86 +45,297 @@ import java.util.*;
 
 class Patterns {
     
+    private static final int CATALOG_MAGIC = 0x43434657; // "WFCC"
+    private static final int CATALOG_VERSION = 1;
+    private static final int CATALOG_HEADER_BYTES = 24;
+    private static final int PARALLEL_EXTRACTION_THRESHOLD = 128 * 128; // input cells
+    
     private final int count;
-    private final int[] value_table; // maps pattern indexes to the 3x3 center value
+    private final int pattern_size; // N
+    private final int[] value_table; // maps pattern indexes to the value of the anchor cell
     private final int[] weight_table; // maps pattern indexes to how many times it occurred in the input
+    private final double[] weight_log_weight_table; // maps pattern indexes to w * log(w), where w is the weight
+    private final int sum_weights; // the sum of all weights
     private final float super_entropy; // the entropy of a Cell that can become any pattern
     private final BitSet super_position; // The set of all patterns [0->(count - 1)]
-    private final BitSet intermediary_bitset;
-    private final BitSet[] valid_connections_t;
-    private final BitSet[] valid_connections_r;
-    private final BitSet[] valid_connections_b;
-    private final BitSet[] valid_connections_l;
-    private final IntBuffer buffer_0; // buffers used to store pattern indexes, their length is equal to
-    private final IntBuffer buffer_1; // the total pattern count, and they are used by the WCF object
+    private final int[][][] adjacency_lists; // [direction][pattern] -> valid adjacent pattern indexes (shared by equal lists)
+    private volatile BitSet[][] valid_connections; // [direction][pattern] -> valid adjacent patterns. Built on first use
+    private long extraction_nanos; // time it took to extract (or load) the patterns
     
     /**
-     * Creates new Pattern Collection
-     * @param src input to process
-     * @param allow_permutations allow pattern rotations and reflections
+     * Creates new Pattern Collection from the tables of extracted or loaded patterns
+     * @param pattern_size N, the width and height of the patterns
+     * @param value_table maps pattern indexes to the value of the anchor cell
+     * @param weight_table maps pattern indexes to how many times it occurred in the input
+     * @param adjacency_lists [direction][pattern] -> valid adjacent pattern indexes (ascending)
      */
-    Patterns(int[][] src, boolean allow_permutations) {
-        List<Map.Entry<Pattern,int[]>> entries = unique_patterns(src,allow_permutations);
-        count = entries.size();
-        value_table = new int[count];
-        weight_table = new int[count];
-        buffer_0 = IntBuffer.allocate(count);
-        buffer_1 = IntBuffer.allocate(count);
-        super_position = new BitSet(count);
-        intermediary_bitset = new BitSet(count);
-        valid_connections_t = new BitSet[count];
-        valid_connections_r = new BitSet[count];
-        valid_connections_b = new BitSet[count];
-        valid_connections_l = new BitSet[count];
+    private Patterns(int pattern_size, int[] value_table, int[] weight_table, int[][][] adjacency_lists) {
+        this.pattern_size = pattern_size;
+        this.count = value_table.length;
+        this.value_table = value_table;
+        this.weight_table = weight_table;
+        this.adjacency_lists = adjacency_lists;
+        weight_log_weight_table = new double[count];
+        super_position = new BitSet(Math.max(count, 1));
         int sum_weights_total = 0;
-        List<Pattern> pattern_obj_list = new ArrayList<>(count);
         for (int i = 0; i < count; i++) {
-            Map.Entry<Pattern,int[]> entry = entries.get(i);
-            Pattern pattern_obj = entry.getKey();
-            pattern_obj_list.add(pattern_obj);
-            value_table[i] = pattern_obj.center();
-            weight_table[i] = entry.getValue()[0];
+            weight_log_weight_table[i] = weight_table[i] * Math.log(weight_table[i]);
             sum_weights_total += weight_table[i];
             super_position.setUnchecked(i);
-            valid_connections_t[i] = new BitSet(64);
-            valid_connections_r[i] = new BitSet(64);
-            valid_connections_b[i] = new BitSet(64);
-            valid_connections_l[i] = new BitSet(64);
-        } for (int i = 0; i < count; i++) {
-            Pattern pattern = pattern_obj_list.get(i);
-            for (int j = 0; j < count; j++) {
-                Pattern other = pattern_obj_list.get(j);
-                if (pattern.top_match(other)) valid_connections_t[i].set(j);
-                if (pattern.right_match(other)) valid_connections_r[i].set(j);
-                if (pattern.bottom_match(other)) valid_connections_b[i].set(j);
-                if (pattern.left_match(other)) valid_connections_l[i].set(j);
-            }
-        } super_entropy = calculate_cell_initial_entropy(sum_weights_total);
+        } sum_weights = sum_weights_total;
+        super_entropy = calculate_cell_initial_entropy(sum_weights_total);
     }
     
+    /**
+     * Creates new Pattern Collection
+     * @param src input to process
+     * @param pattern_size N, the width and height of the patterns [2 -> 5]
+     * @param allow_permutations allow pattern rotations and reflections
+     */
+    static Patterns extract(int[][] src, int pattern_size, boolean allow_permutations) {
+        if (pattern_size < 2 || pattern_size > 5) {
+            throw new IllegalArgumentException("Unsupported pattern size: " + pattern_size);
+        } ExtractionEvent event = new ExtractionEvent();
+        event.begin();
+        long start_time = System.nanoTime();
+        int[] palette = palette(src);
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(palette.length - 1));
+        int cells_per_word = 64 / bits;
+        int area = pattern_size * pattern_size;
+        int words_per_key = (area + cells_per_word - 1) / cells_per_word;
+        PackedKeyMap map = unique_patterns(src, pattern_size, palette, bits, words_per_key, allow_permutations);
+        int anchor = ((pattern_size - 1 - (pattern_size - 1) / 2) * pattern_size) + (pattern_size - 1) / 2;
+        int[][] offsets = new int[][]{{0,1},{1,0},{0,-1},{-1,0}}; // [N,E,S,W]
+        int[][][] overlaps = new int[4][][];
+        for (int direction = 0; direction < 4; direction++) {
+            overlaps[direction] = overlap(pattern_size, offsets[direction][0], offsets[direction][1]);
+        } return finished(from_counts(map, palette, bits, pattern_size, anchor, overlaps), start_time, event, false);
+    }
     
-    BitSet valid_adjacent_patterns(IntBuffer options, int direction) { // to_direction
-        intermediary_bitset.clear();
-        BitSet[] valid_connections;
-        switch (direction) {
-            case 0 -> valid_connections = valid_connections_t;
-            case 1 -> valid_connections = valid_connections_r;
-            case 2 -> valid_connections = valid_connections_b;
-            case 3 -> valid_connections = valid_connections_l;
-            default -> throw new IllegalStateException("Unexpected value: " + direction);
-        } int buffer_position = options.position();
-        int buffer_limit = options.limit();
-        for (int i = buffer_position; i < buffer_limit; i++) {
-            intermediary_bitset.or(valid_connections[options.get(i)]);
-        } return intermediary_bitset;
+    /**
+     * Creates new Pattern Collection of NxNxN patterns, from a 3D input. (Voxels)
+     * The patterns have 6 directions [N,E,S,W,U,D] -> [+y,+x,-y,-x,+z,-z].
+     * The permutations are the rotations around the z-axis, and their reflections. (8, like the 2D patterns)
+     * Up stays up, so the patterns keep what the input says about gravity, floors and ceilings.
+     * @param src input to process [z][y][x]
+     * @param pattern_size N, the width, height and depth of the patterns [2 -> 4]
+     * @param allow_permutations allow pattern rotations (around z) and reflections
+     */
+    static Patterns extract_volume(int[][][] src, int pattern_size, boolean allow_permutations) {
+        if (pattern_size < 2 || pattern_size > 4) {
+            throw new IllegalArgumentException("Unsupported pattern size: " + pattern_size);
+        } ExtractionEvent event = new ExtractionEvent();
+        event.begin();
+        long start_time = System.nanoTime();
+        int[] palette = palette(Arrays.stream(src).flatMap(Arrays::stream).toArray(int[][]::new));
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(palette.length - 1));
+        int cells_per_word = 64 / bits;
+        int volume = pattern_size * pattern_size * pattern_size;
+        int words_per_key = (volume + cells_per_word - 1) / cells_per_word;
+        PackedKeyMap map = unique_volume_patterns(src, pattern_size, palette, bits, words_per_key, allow_permutations);
+        int a = (pattern_size - 1) / 2;
+        int anchor = (a * pattern_size + a) * pattern_size + a;
+        int[][] offsets = new int[][]{{0,1,0},{1,0,0},{0,-1,0},{-1,0,0},{0,0,1},{0,0,-1}}; // [N,E,S,W,U,D]
+        int[][][] overlaps = new int[6][][];
+        for (int direction = 0; direction < 6; direction++) {
+            overlaps[direction] = volume_overlap(pattern_size, offsets[direction][0], offsets[direction][1], offsets[direction][2]);
+        } return finished(from_counts(map, palette, bits, pattern_size, anchor, overlaps), start_time, event, false);
+    }
+    
+    /**
+     * Orders the counted patterns, and matches their overlaps in every direction.
+     * @param map the counted patterns
+     * @param palette the unique values of the input
+     * @param bits bits per palette index
+     * @param pattern_size N
+     * @param anchor index of the cell holding the value of a pattern
+     * @param overlaps [direction] -> {own cells, adjacent cells} (See overlap)
+     */
+    private static Patterns from_counts(PackedKeyMap map, int[] palette, int bits, int pattern_size, int anchor, int[][][] overlaps) {
+        int count = map.size();
+        int words_per_key = map.words_per_key();
+        // Sort by frequency (descending), then by first occurrence (the id)
+        long[] order = new long[count];
+        for (int id = 0; id < count; id++) {
+            order[id] = ((long) (Integer.MAX_VALUE - map.count(id)) << 32) | id;
+        } Arrays.sort(order);
+        long[] keys = new long[count * words_per_key]; // [pattern][word] the packed palette indexes of the cells
+        int[] value_table = new int[count];
+        int[] weight_table = new int[count];
+        int[][][] adjacency_lists = new int[overlaps.length][count][];
+        for (int i = 0; i < count; i++) {
+            int id = (int) order[i];
+            System.arraycopy(map.keys(), id * words_per_key, keys, i * words_per_key, words_per_key);
+            value_table[i] = palette[cell(keys, i * words_per_key, anchor, bits)];
+            weight_table[i] = map.count(id);
+        } for (int direction = 0; direction < overlaps.length; direction++) {
+            match_overlaps(keys, words_per_key, bits, overlaps[direction][0], overlaps[direction][1], adjacency_lists[direction]);
+        } return new Patterns(pattern_size, value_table, weight_table, adjacency_lists);
+    }
+    
+    /**
+     * Loads a catalog written by write. The file is memory-mapped, and the tables are bulk copied from it.
+     * Nothing is extracted or matched.
+     * @param path catalog file
+     * @return the patterns of the catalog
+     * @throws IOException if the file could not be read, is not a catalog of a supported version, or is truncated or corrupt
+     */
+    static Patterns read(Path path) throws IOException {
+        ExtractionEvent event = new ExtractionEvent();
+        event.begin();
+        long start_time = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < CATALOG_HEADER_BYTES) throw new IOException("Not a pattern catalog: " + path);
+            // The header is validated before anything is mapped or allocated
+            ByteBuffer header = ByteBuffer.allocate(CATALOG_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) throw new IOException("Truncated pattern catalog: " + path);
+            } header.flip();
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic != CATALOG_MAGIC) throw new IOException("Not a pattern catalog: " + path);
+            if (version != CATALOG_VERSION) throw new IOException("Unsupported catalog version: " + version);
+            int pattern_size = header.getInt();
+            int count = header.getInt();
+            int words = header.getInt();
+            header.getInt(); // reserved
+            if (pattern_size < 2 || pattern_size > 5) {
+                throw new IOException("Unsupported pattern size in catalog: " + pattern_size);
+            } if (count < 1 || words != (count + 63) >>> 6) {
+                throw new IOException("Corrupt pattern catalog: " + path);
+            } if (size > Integer.MAX_VALUE) {
+                throw new IOException("Pattern catalog too large to map: " + path);
+            } if (size != catalog_bytes(count)) {
+                throw new IOException("Pattern catalog of " + count + " patterns is " + catalog_bytes(count)
+                + " bytes, the file is " + size + ": " + path);
+            } ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(CATALOG_HEADER_BYTES);
+            int[] value_table = new int[count];
+            int[] weight_table = new int[count];
+            buffer.asIntBuffer().get(value_table);
+            buffer.position(buffer.position() + count * 4);
+            buffer.asIntBuffer().get(weight_table);
+            buffer.position(buffer.position() + count * 4);
+            for (int weight : weight_table) {
+                if (weight < 1) throw new IOException("Corrupt pattern catalog (weight " + weight + "): " + path);
+            } LongBuffer adjacency = buffer.asLongBuffer();
+            long[] row = new long[words];
+            long padding = (count & 63) == 0 ? 0L : -1L << count; // the bits past the last pattern
+            int[][][] adjacency_lists = new int[4][count][];
+            for (int direction = 0; direction < 4; direction++) {
+                for (int i = 0; i < count; i++) {
+                    adjacency.get(row);
+                    if ((row[words - 1] & padding) != 0) {
+                        throw new IOException("Corrupt pattern catalog (adjacent pattern out of range): " + path);
+                    }
+                    int cardinality = 0;
+                    for (long word : row) cardinality += Long.bitCount(word);
+                    int[] list = new int[cardinality];
+                    for (int w = 0, k = 0; w < words; w++) {
+                        long word = row[w];
+                        while (word != 0) {
+                            list[k++] = (w << 6) + Long.numberOfTrailingZeros(word);
+                            word &= word - 1;
+                        }
+                    } adjacency_lists[direction][i] = list;
+                }
+            } return finished(new Patterns(pattern_size, value_table, weight_table, adjacency_lists), start_time, event, true);
+        }
     }
     
-    IntBuffer borrow_buffer_0() {
-        return buffer_0;
+    /**
+     * Records the time it took to extract or load the patterns, and commits the Flight Recorder event.
+     */
+    private static Patterns finished(Patterns patterns, long start_time, ExtractionEvent event, boolean catalog) {
+        patterns.extraction_nanos = System.nanoTime() - start_time;
+        if (event.shouldCommit()) {
+            event.catalog = catalog;
+            event.pattern_size = patterns.pattern_size;
+            event.patterns = patterns.count;
+            event.commit();
+        } return patterns;
+    }
+    
+    /**
+     * Writes the catalog: A header, the value table, the weight table,
+     * and the bitset words of the valid adjacent patterns of every pattern, for every direction.
+     * Little endian. Longs are 8-byte aligned.
+     * @param path catalog file (replaced if it exists)
+     * @throws IOException if the file could not be written
+     */
+    void write(Path path) throws IOException {
+        if (directions() != 4) throw new IllegalStateException("Catalogs only hold 2D patterns");
+        int words = (count + 63) >>> 6;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(catalog_bytes(count))).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CATALOG_MAGIC).putInt(CATALOG_VERSION);
+        buffer.putInt(pattern_size).putInt(count).putInt(words).putInt(0);
+        for (int value : value_table) buffer.putInt(value);
+        for (int weight : weight_table) buffer.putInt(weight);
+        long[] row = new long[words];
+        for (int direction = 0; direction < 4; direction++) {
+            for (int i = 0; i < count; i++) {
+                Arrays.fill(row, 0L);
+                for (int adjacent : adjacency_lists[direction][i]) row[adjacent >>> 6] |= 1L << adjacent;
+                for (long word : row) buffer.putLong(word);
+            }
+        } buffer.flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
     }
     
-    IntBuffer borrow_buffer_1() {
-        return buffer_1;
+    private static long catalog_bytes(int count) {
+        long words = (count + 63) >>> 6;
+        return CATALOG_HEADER_BYTES + 8L * count + 4L * count * words * 8L;
+    }
+    
+    
+    /**
+     * The union of the valid adjacent patterns of every option, in the given direction.
+     * @param options pattern indexes
+     * @param direction to_direction
+     * @param dst destination bitset (cleared first)
+     * @return the destination bitset
+     */
+    BitSet valid_adjacent_patterns(IntBuffer options, int direction, BitSet dst) {
+        dst.clear();
+        BitSet[] valid_connections = valid_connections()[direction];
+        int buffer_position = options.position();
+        int buffer_limit = options.limit();
+        long[] union = dst.array();
+        if (union.length != super_position.array().length) { // dst of another size
+            for (int i = buffer_position; i < buffer_limit; i++) {
+                dst.or(valid_connections[options.get(i)]);
+            } return dst;
+        } // The hot loop of the propagation. Four sets per pass over the words, so every word
+        // of the union is loaded and stored a quarter as often, and the ORs are independent.
+        int i = buffer_position;
+        for (; i + 3 < buffer_limit; i += 4) {
+            long[] a = valid_connections[options.get(i)].array();
+            long[] b = valid_connections[options.get(i + 1)].array();
+            long[] c = valid_connections[options.get(i + 2)].array();
+            long[] d = valid_connections[options.get(i + 3)].array();
+            for (int w = 0; w < union.length; w++) union[w] |= (a[w] | b[w]) | (c[w] | d[w]);
+        } for (; i < buffer_limit; i++) {
+            long[] a = valid_connections[options.get(i)].array();
+            for (int w = 0; w < union.length; w++) union[w] |= a[w];
+        } return dst;
+    }
+    
+    /**
+     * The patterns that can be placed adjacent to the pattern in the given direction.
+     * Adjacency is symmetric: q is in the list of p for direction d,
+     * if and only if p is in the list of q for the opposite direction.
+     * The length of the list is therefore also the initial "support" count
+     * of p, from a neighbour in full superposition. (Used by the AC-4 propagation)
+     * @param pattern the source pattern
+     * @param direction to_direction
+     * @return array of pattern indexes (Do not modify)
+     */
+    int[] adjacent_patterns(int pattern, int direction) {
+        return adjacency_lists[direction][pattern];
     }
     
     BitSet super_position() {
@@ -113,10 +350,52 @@ class Patterns {
         return count;
     }
     
+    int pattern_size() {
+        return pattern_size;
+    }
+    
+    /**
+     * @return 4 for 2D patterns [N,E,S,W], 6 for 3D patterns [N,E,S,W,U,D]
+     */
+    int directions() {
+        return adjacency_lists.length;
+    }
+    
+    /**
+     * @return a hash of the values, weights and adjacency of the patterns (Identifies them in checkpoints)
+     */
+    int fingerprint() {
+        int hash = count;
+        for (int pattern = 0; pattern < count; pattern++) {
+            hash = hash * 31 + value_table[pattern];
+            hash = hash * 31 + weight_table[pattern];
+            for (int[][] lists : adjacency_lists) hash = hash * 31 + Arrays.hashCode(lists[pattern]);
+        } return hash;
+    }
+    
+    long extraction_nanos() {
+        return extraction_nanos;
+    }
+    
     int frequency_of(int pattern) {
         return weight_table[pattern];
     }
     
+    double weight_log_weight_of(int pattern) {
+        return weight_log_weight_table[pattern];
+    }
+    
+    int sum_weights() {
+        return sum_weights;
+    }
+    
+    double sum_weight_log_weights() {
+        double S = 0;
+        for (int i = 0; i < count; i++) {
+            S += weight_log_weight_table[i];
+        } return S;
+    }
+    
     int value_of(int pattern) {
         return value_table[pattern];
     }
@@ -127,133 +406,369 @@ class Patterns {
     // log(W) - (w1*log(w1) + w2*log(w2) + ... + wn*log(wn)) / W
     
     private float calculate_cell_initial_entropy(int W) {
-        double S = 0;
-        for (int i = 0; i < count; i++) {
-            S += (weight_table[i] * Math.log(weight_table[i]));
-        } return (float) (Math.log(W) - S / W);
+        double S = sum_weight_log_weights();
+        return (float) (Math.log(W) - S / W);
+    }
+    
+    /**
+     * The adjacency lists as bitsets. Only the BITSET_UNION propagation needs them,
+     * so they are built the first time they are used. (By any thread)
+     * @return [direction][pattern] -> valid adjacent patterns
+     */
+    private BitSet[][] valid_connections() {
+        BitSet[][] connections = valid_connections;
+        if (connections == null) {
+            synchronized (this) {
+                connections = valid_connections;
+                if (connections == null) {
+                    connections = new BitSet[adjacency_lists.length][count];
+                    for (int direction = 0; direction < adjacency_lists.length; direction++) {
+                        for (int i = 0; i < count; i++) {
+                            BitSet bitset = new BitSet(count);
+                            for (int adjacent : adjacency_lists[direction][i]) bitset.setUnchecked(adjacent);
+                            connections[direction][i] = bitset;
+                        }
+                    } valid_connections = connections;
+                }
+            }
+        } return connections;
+    }
+    
+    /**
+     * Counts every NxN window of the input (wrapping around its edges), and their permutations.
+     * Large inputs are split into bands of rows, counted in parallel (common ForkJoinPool) into partial maps.
+     * The partial maps are merged in band order, so the ids are in order of first occurrence,
+     * the same as counting the whole input on a single thread.
+     * @return map of the packed patterns, ids in order of first occurrence
+     */
+    private static PackedKeyMap unique_patterns(int[][] grid, int n, int[] palette, int bits, int words_per_key, boolean allow_permutations) {
+        int rows = grid.length;
+        int cols = grid[0].length;
+        if (rows < n || cols < n) return new PackedKeyMap(words_per_key, 256);
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int bands = parallelism < 2 || (long) rows * cols < PARALLEL_EXTRACTION_THRESHOLD ? 1 : Math.min(rows, parallelism * 4);
+        int[][] indexed = new int[rows][cols];
+        IntStream range = IntStream.range(0, rows);
+        (bands > 1 ? range.parallel() : range).forEach(r -> {
+            for (int c = 0; c < cols; c++) {
+                indexed[r][c] = Arrays.binarySearch(palette, grid[r][c]);
+            }
+        }); if (bands == 1) return count_patterns(indexed, n, bits, words_per_key, allow_permutations, 0, rows);
+        return merge(IntStream.range(0, bands).parallel().mapToObj(band ->
+        count_patterns(indexed, n, bits, words_per_key, allow_permutations,
+        (int) ((long) rows * band / bands), (int) ((long) rows * (band + 1) / bands))).toList());
     }
     
-    private List<Map.Entry<Pattern, int[]>> unique_patterns(int[][] grid, boolean allow_permutations) {
-        List<Map.Entry<Pattern, int[]>> list = new ArrayList<>(unique_pattern_map(grid,allow_permutations).entrySet());
-        list.sort((o1, o2) -> Integer.compare(o2.getValue()[0], o1.getValue()[0]));
-        return list;
+    /**
+     * Counts every NxNxN window of the 3D input (wrapping around its edges), and their permutations.
+     * Large inputs are split into slabs of layers, counted in parallel. Like unique_patterns
+     * @return map of the packed patterns, ids in order of first occurrence
+     */
+    private static PackedKeyMap unique_volume_patterns(int[][][] grid, int n, int[] palette, int bits, int words_per_key, boolean allow_permutations) {
+        int layers = grid.length;
+        int rows = grid[0].length;
+        int cols = grid[0][0].length;
+        if (layers < n || rows < n || cols < n) return new PackedKeyMap(words_per_key, 256);
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int slabs = parallelism < 2 || (long) layers * rows * cols < PARALLEL_EXTRACTION_THRESHOLD ? 1 : Math.min(layers, parallelism * 4);
+        int[][][] indexed = new int[layers][rows][cols];
+        IntStream range = IntStream.range(0, layers);
+        (slabs > 1 ? range.parallel() : range).forEach(z -> {
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < cols; c++) {
+                    indexed[z][r][c] = Arrays.binarySearch(palette, grid[z][r][c]);
+                }
+            }
+        }); if (slabs == 1) return count_volume_patterns(indexed, n, bits, words_per_key, allow_permutations, 0, layers);
+        return merge(IntStream.range(0, slabs).parallel().mapToObj(slab ->
+        count_volume_patterns(indexed, n, bits, words_per_key, allow_permutations,
+        (int) ((long) layers * slab / slabs), (int) ((long) layers * (slab + 1) / slabs))).toList());
     }
     
-    private Map<Pattern, int[]> unique_pattern_map(int[][] grid, boolean allow_permutations) {
-        List<Pattern> list = all_patterns(grid, allow_permutations);
-        Map<Pattern, int[]> map = new HashMap<>(Math.round(list.size() * 1.4f));
-        for (Pattern pattern : list) {
-            int[] occurrences = map.get(pattern);
-            if (occurrences == null) {
-                occurrences = new int[]{1};
-                map.put(pattern, occurrences);
-            } else occurrences[0]++;
+    /**
+     * Merges partial maps in order. The ids of the merged map are in order of first occurrence,
+     * the same as counting the parts one after the other into one map.
+     */
+    private static PackedKeyMap merge(List<PackedKeyMap> partial_maps) {
+        int words_per_key = partial_maps.get(0).words_per_key();
+        PackedKeyMap map = new PackedKeyMap(words_per_key, partial_maps.get(0).size() * 2);
+        for (PackedKeyMap partial_map : partial_maps) {
+            long[] keys = partial_map.keys();
+            for (int id = 0; id < partial_map.size(); id++) {
+                map.add(keys, id * words_per_key, partial_map.count(id));
+            }
         } return map;
     }
     
-    private List<Pattern> all_patterns(int[][] grid, boolean allow_permutations) {
-        int rows = grid.length;
-        int cols = grid[0].length;
-        List<Pattern> dst = new ArrayList<>(rows * cols);
-        if (rows >= 3 && cols >= 3) {
+    /**
+     * Counts the NxN windows (and their permutations) of the rows [row_from -> row_to) of the input.
+     * @param indexed the input as palette indexes
+     * @return map of the packed patterns, ids in order of first occurrence
+     */
+    private static PackedKeyMap count_patterns(int[][] indexed, int n, int bits, int words_per_key,
+                                               boolean allow_permutations, int row_from, int row_to) {
+        int rows = indexed.length;
+        int cols = indexed[0].length;
+        int area = n * n;
+        int anchor = (n - 1) / 2;
+        PackedKeyMap map = new PackedKeyMap(words_per_key, 256);
+        int[] window = new int[area];
+        int[] rotated = new int[area];
+        int[] flipped = new int[area];
+        long[] key = new long[words_per_key];
+        for (int r = row_from; r < row_to; r++) {
+            for (int c = 0; c < cols; c++) {
+                // row 0 is the top row (r + n - 1 - anchor), column 0 is the left column (c - anchor)
+                for (int row = 0; row < n; row++) {
+                    int[] grid_row = indexed[Math.floorMod(r + n - 1 - anchor - row, rows)];
+                    for (int col = 0; col < n; col++) {
+                        window[row * n + col] = grid_row[Math.floorMod(c - anchor + col, cols)];
+                    }
+                } if (allow_permutations) {
+                    // p, r90, r180, r270, then the flip of each
+                    System.arraycopy(window, 0, rotated, 0, area);
+                    for (int i = 0; i < 4; i++) {
+                        map.increment(pack(rotated, bits, key), 0);
+                        if (i < 3) rotate(rotated, flipped, n);
+                    } System.arraycopy(window, 0, rotated, 0, area);
+                    for (int i = 0; i < 4; i++) {
+                        flip(rotated, flipped, n);
+                        map.increment(pack(flipped, bits, key), 0);
+                        if (i < 3) rotate(rotated, flipped, n);
+                    }
+                } else map.increment(pack(window, bits, key), 0);
+            }
+        } return map;
+    }
+    
+    /**
+     * Counts the NxNxN windows (and their permutations) of the layers [z_from -> z_to) of the 3D input.
+     * The cells of a window are ordered by (z, y, x) ascending, starting at the voxel (-anchor, -anchor, -anchor)
+     * from the anchor voxel.
+     * @param indexed the input as palette indexes
+     * @return map of the packed patterns, ids in order of first occurrence
+     */
+    private static PackedKeyMap count_volume_patterns(int[][][] indexed, int n, int bits, int words_per_key,
+                                                      boolean allow_permutations, int z_from, int z_to) {
+        int layers = indexed.length;
+        int rows = indexed[0].length;
+        int cols = indexed[0][0].length;
+        int volume = n * n * n;
+        int anchor = (n - 1) / 2;
+        PackedKeyMap map = new PackedKeyMap(words_per_key, 256);
+        int[] window = new int[volume];
+        int[] rotated = new int[volume];
+        int[] flipped = new int[volume];
+        long[] key = new long[words_per_key];
+        for (int z = z_from; z < z_to; z++) {
             for (int r = 0; r < rows; r++) {
                 for (int c = 0; c < cols; c++) {
-                    int t_idx = (r + 1) % rows;
-                    int l_idx = (c - 1) < 0 ? cols - 1 : (c - 1);
-                    int b_idx = (r - 1) < 0 ? rows - 1 : (r - 1);
-                    int r_idx = (c + 1) % cols;
-                    // tl, to, tr, cl, ce, cr, bl, bo, br;
-                    Pattern pattern = new Pattern(
-                            grid[t_idx][l_idx],
-                            grid[t_idx][c],
-                            grid[t_idx][r_idx],
-                            grid[r][l_idx],
-                            grid[r][c],
-                            grid[r][r_idx],
-                            grid[b_idx][l_idx],
-                            grid[b_idx][c],
-                            grid[b_idx][r_idx]
-                    ); if (allow_permutations)
-                        all_permutations(pattern,dst);
-                    else dst.add(pattern);
+                    for (int dz = 0; dz < n; dz++) {
+                        int[][] layer = indexed[Math.floorMod(z - anchor + dz, layers)];
+                        for (int dy = 0; dy < n; dy++) {
+                            int[] grid_row = layer[Math.floorMod(r - anchor + dy, rows)];
+                            for (int dx = 0; dx < n; dx++) {
+                                window[(dz * n + dy) * n + dx] = grid_row[Math.floorMod(c - anchor + dx, cols)];
+                            }
+                        }
+                    } if (allow_permutations) {
+                        // p, r90, r180, r270, then the reflection of each
+                        System.arraycopy(window, 0, rotated, 0, volume);
+                        for (int i = 0; i < 4; i++) {
+                            map.increment(pack(rotated, bits, key), 0);
+                            if (i < 3) rotate_volume(rotated, flipped, n);
+                        } System.arraycopy(window, 0, rotated, 0, volume);
+                        for (int i = 0; i < 4; i++) {
+                            flip_volume(rotated, flipped, n);
+                            map.increment(pack(flipped, bits, key), 0);
+                            if (i < 3) rotate_volume(rotated, flipped, n);
+                        }
+                    } else map.increment(pack(window, bits, key), 0);
                 }
             }
-        }
-        return dst;
-    }
-    
-    private void all_permutations(Pattern pattern, Collection<Pattern> dst) {
-        Pattern r90 = pattern.rotate();
-        Pattern r180 = r90.rotate();
-        Pattern r270 = r180.rotate();
-        dst.add(pattern);
-        dst.add(r90);
-        dst.add(r180);
-        dst.add(r270);
-        dst.add(pattern.flip());
-        dst.add(r90.flip());
-        dst.add(r180.flip());
-        dst.add(r270.flip());
-    }
-    
-    private final static class Pattern {
-        
-        private final int tl, to, tr;
-        private final int cl, ce, cr;
-        private final int bl, bo, br;
-        
-        private Pattern(int tl, int to, int tr, int cl, int ce, int cr, int bl, int bo, int br) {
-            this.tl = tl; this.to = to; this.tr = tr;
-            this.cl = cl; this.ce = ce; this.cr = cr;
-            this.bl = bl; this.bo = bo; this.br = br;
-        }
-        
-        boolean top_match(Pattern o) {
-            return tl == o.cl && to == o.ce && tr == o.cr && cl == o.bl && ce == o.bo && cr == o.br;
-        }
-        
-        boolean right_match(Pattern o) {
-            return to == o.tl && tr == o.to && ce == o.cl && cr == o.ce && bo == o.bl && br == o.bo;
-        }
-        
-        boolean bottom_match(Pattern o) {
-            return o.tl == cl && o.to == ce && o.tr == cr && o.cl == bl && o.ce == bo && o.cr == br;
-        }
-        
-        boolean left_match(Pattern o) {
-            return o.to == tl && o.tr == to && o.ce == cl && o.cr == ce && o.bo == bl && o.br == bo;
-        }
-        
-        int center() {
-            return ce;
-        }
+        } return map;
+    }
     
-        private Pattern rotate() { // 90-deg
-            return new Pattern(bl, cl, tl, bo, ce, to, br, cr, tr);
-        }
-        
-        private Pattern flip() { // vertical
-            return new Pattern(bl,bo,br,cl,ce,cr,tl,to,tr);
-        }
-        
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Pattern p = (Pattern) o;
-            return tl == p.tl && to == p.to && tr == p.tr
-            && cl == p.cl && ce == p.ce && cr == p.cr
-            && bl == p.bl && bo == p.bo && br == p.br;
+    /**
+     * Rotates the 3D pattern 90-deg around the z-axis, in place
+     * @param pattern pattern to rotate
+     * @param tmp buffer of the same size
+     * @param n pattern size
+     */
+    private static void rotate_volume(int[] pattern, int[] tmp, int n) {
+        for (int z = 0; z < n; z++) {
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    tmp[(z * n + y) * n + x] = pattern[(z * n + x) * n + (n - 1 - y)];
+                }
+            }
+        } System.arraycopy(tmp, 0, pattern, 0, n * n * n);
+    }
+    
+    /**
+     * @param pattern 3D pattern to reflect (x)
+     * @param dst the reflected pattern
+     * @param n pattern size
+     */
+    private static void flip_volume(int[] pattern, int[] dst, int n) {
+        for (int i = 0; i < n * n; i++) {
+            for (int x = 0; x < n; x++) {
+                dst[i * n + x] = pattern[i * n + (n - 1 - x)];
+            }
         }
-        
-        public int hashCode() {
-            return Objects.hash(tl, to, tr, cl, ce, cr, bl, bo, br);
+    }
+    
+    /**
+     * Rotates the pattern 90-deg in place
+     * @param pattern pattern to rotate
+     * @param tmp buffer of the same size
+     * @param n pattern size
+     */
+    private static void rotate(int[] pattern, int[] tmp, int n) {
+        for (int row = 0; row < n; row++) {
+            for (int col = 0; col < n; col++) {
+                tmp[row * n + col] = pattern[(n - 1 - col) * n + row];
+            }
+        } System.arraycopy(tmp, 0, pattern, 0, n * n);
+    }
+    
+    /**
+     * @param pattern pattern to flip (vertical)
+     * @param dst the flipped pattern
+     * @param n pattern size
+     */
+    private static void flip(int[] pattern, int[] dst, int n) {
+        for (int row = 0; row < n; row++) {
+            System.arraycopy(pattern, (n - 1 - row) * n, dst, row * n, n);
         }
+    }
+    
+    /**
+     * The cells where a pattern and its adjacent pattern overlap, when the adjacent pattern is shifted
+     * one cell by the offset. (Cells are row major, top row first)
+     * @param n pattern size
+     * @param ox x offset of the adjacent pattern (right is positive)
+     * @param oy y offset of the adjacent pattern (up is positive)
+     * @return {own cells, adjacent cells}. The patterns are adjacent if own[k] == adjacent[k] for every k
+     */
+    private static int[][] overlap(int n, int ox, int oy) {
+        int row_from = Math.max(0, oy), row_to = Math.min(n, n + oy);
+        int col_from = Math.max(0, -ox), col_to = Math.min(n, n - ox);
+        int[] own = new int[(row_to - row_from) * (col_to - col_from)];
+        int[] adjacent = new int[own.length];
+        int k = 0;
+        for (int row = row_from; row < row_to; row++) {
+            for (int col = col_from; col < col_to; col++) {
+                own[k] = (row - oy) * n + col + ox;
+                adjacent[k++] = row * n + col;
+            }
+        } return new int[][] {own, adjacent};
+    }
     
-        @Override
-        public String toString() {
-            return tl + "  " + to + "  " + tr + "\n" +
-                   cl + "  " + ce + "  " + cr + "\n" +
-                   bl + "  " + bo + "  " + br + "\n";
+    /**
+     * The cells where a 3D pattern and its adjacent pattern overlap, when the adjacent pattern is shifted
+     * one cell by the offset. (Cells are ordered by (z, y, x) ascending)
+     * @return {own cells, adjacent cells}. The patterns are adjacent if own[k] == adjacent[k] for every k
+     */
+    private static int[][] volume_overlap(int n, int ox, int oy, int oz) {
+        int x_from = Math.max(0, -ox), x_to = Math.min(n, n - ox);
+        int y_from = Math.max(0, -oy), y_to = Math.min(n, n - oy);
+        int z_from = Math.max(0, -oz), z_to = Math.min(n, n - oz);
+        int[] own = new int[(x_to - x_from) * (y_to - y_from) * (z_to - z_from)];
+        int[] adjacent = new int[own.length];
+        int k = 0;
+        for (int z = z_from; z < z_to; z++) {
+            for (int y = y_from; y < y_to; y++) {
+                for (int x = x_from; x < x_to; x++) {
+                    own[k] = ((z + oz) * n + y + oy) * n + x + ox;
+                    adjacent[k++] = (z * n + y) * n + x;
+                }
+            }
+        } return new int[][] {own, adjacent};
+    }
+    
+    /**
+     * Finds every pair of patterns that are equal where they overlap.
+     * Every adjacent pattern is put in a bucket keyed by its part of the overlap
+     * (packed like the patterns). Then every pattern looks up the bucket keyed by its own part of the overlap.
+     * The cost is proportional to (patterns x overlap) + the number of adjacent pairs, instead of patterns squared.
+     * @param keys [pattern][word] the packed patterns
+     * @param words_per_key words per packed pattern
+     * @param bits bits per palette index
+     * @param own_cells the cells of the overlap in the pattern
+     * @param adjacent_cells the same cells in the adjacent pattern
+     * @param dst [pattern] -> valid adjacent pattern indexes. Patterns with the same overlap share the list
+     */
+    private static void match_overlaps(long[] keys, int words_per_key, int bits, int[] own_cells, int[] adjacent_cells, int[][] dst) {
+        int count = keys.length / words_per_key;
+        int overlap_area = own_cells.length;
+        int cells_per_word = 64 / bits;
+        int words_per_overlap = (overlap_area + cells_per_word - 1) / cells_per_word;
+        int[] overlap = new int[overlap_area];
+        long[] key = new long[words_per_overlap];
+        // Bucket every pattern by its overlap as the adjacent pattern
+        PackedKeyMap buckets = new PackedKeyMap(words_per_overlap, count);
+        int[] bucket_of = new int[count];
+        for (int j = 0; j < count; j++) {
+            for (int k = 0; k < overlap_area; k++) {
+                overlap[k] = cell(keys, j * words_per_key, adjacent_cells[k], bits);
+            } bucket_of[j] = buckets.increment(pack(overlap, bits, key), 0);
+        } int[] bucket_offsets = new int[buckets.size() + 1];
+        for (int b = 0; b < buckets.size(); b++) {
+            bucket_offsets[b + 1] = bucket_offsets[b] + buckets.count(b);
+        } int[] members = new int[count];
+        int[] fill = Arrays.copyOf(bucket_offsets, buckets.size());
+        for (int j = 0; j < count; j++) {
+            members[fill[bucket_of[j]]++] = j;
+        } // Join every pattern with the bucket of its own part of the overlap
+        int[][] bucket_lists = new int[buckets.size()][];
+        int[] empty = new int[0];
+        for (int i = 0; i < count; i++) {
+            for (int k = 0; k < overlap_area; k++) {
+                overlap[k] = cell(keys, i * words_per_key, own_cells[k], bits);
+            } int bucket = buckets.get(pack(overlap, bits, key), 0);
+            if (bucket < 0) {
+                dst[i] = empty;
+                continue;
+            } if (bucket_lists[bucket] == null) { // members are in ascending order
+                bucket_lists[bucket] = Arrays.copyOfRange(members, bucket_offsets[bucket], bucket_offsets[bucket + 1]);
+            } dst[i] = bucket_lists[bucket];
         }
     }
+    
+    private static long[] pack(int[] cells, int bits, long[] dst) {
+        Arrays.fill(dst, 0L);
+        int cells_per_word = 64 / bits;
+        for (int i = 0; i < cells.length; i++) {
+            dst[i / cells_per_word] |= (long) cells[i] << ((i % cells_per_word) * bits);
+        } return dst;
+    }
+    
+    /**
+     * @param keys packed patterns
+     * @param offset index of the first word of the pattern
+     * @param index index of the cell (row major, top row first)
+     * @param bits bits per palette index
+     * @return the palette index of the cell
+     */
+    private static int cell(long[] keys, int offset, int index, int bits) {
+        int cells_per_word = 64 / bits;
+        return (int) ((keys[offset + index / cells_per_word] >>> ((index % cells_per_word) * bits)) & ((1L << bits) - 1));
+    }
+    
+    /**
+     * @return the unique values of the input, sorted
+     */
+    private static int[] palette(int[][] grid) {
+        int rows = grid.length;
+        int cols = grid[0].length;
+        int[] values = new int[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(grid[r], 0, values, r * cols, cols);
+        } Arrays.sort(values);
+        int unique = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) values[unique++] = values[i];
+        } return Arrays.copyOf(values, Math.max(unique, 1));
+    }
 }
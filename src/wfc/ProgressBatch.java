@@ -0,0 +1,57 @@
+package wfc;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ *
+ * Collects committed Cells into batches for a ProgressListener.
+ * Owned by the thread writing the output.
+ *
+ */
+
+
+final class ProgressBatch {
+    
+    private static final int CAPACITY = 256; // Cells per batch
+    
+    private final ProgressListener listener;
+    private final int[] batch; // (x, y, value) triples
+    private int count;
+    
+    
+    ProgressBatch(ProgressListener listener) {
+        this.listener = listener;
+        this.batch = new int[CAPACITY * 3];
+    }
+    
+    void add(int x, int y, int value) {
+        int i = count * 3;
+        batch[i] = x;
+        batch[i + 1] = y;
+        batch[i + 2] = value;
+        if (++count == CAPACITY) flush();
+    }
+    
+    void flush() {
+        if (count > 0) {
+            listener.cells_committed(batch, count);
+            count = 0;
+        }
+    }
+    
+    void reset() {
+        count = 0;
+        listener.generation_reset();
+    }
+    
+    /**
+     * @param stop the stop condition of the generate call (for a ProgressBuffer waiting on its consumer), or null
+     */
+    void set_stop(BooleanSupplier stop) {
+        if (listener instanceof ProgressBuffer) ((ProgressBuffer) listener).set_stop(stop);
+    }
+    
+    ProgressListener listener() {
+        return listener;
+    }
+}
@@ -0,0 +1,131 @@
+package wfc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ *
+ * A ProgressListener that hands the committed Cells over to another thread.
+ *
+ * Single producer / single consumer ring buffer of (x, y, value) triples. The generating thread
+ * writes the batches into the ring, the consumer (i.e. a render thread) drains whatever has been
+ * published since the last drain, and applies the deltas. Nothing is shared but the ring, and the
+ * read / write positions. When the ring is full, the generating thread waits for the consumer.
+ * So the capacity should cover the Cells committed between two drains. (The output size is plenty)
+ *
+ * The consumer must keep draining until the generation is done, or close the buffer when it stops.
+ * (I.e. when the window is closed, or the consumer failed) A closed buffer drops the Cells instead
+ * of waiting. A generate call with a timeout or a cancellation token stops waiting when it's stopped,
+ * and drops the Cells too. Otherwise a full ring that is never drained blocks the generation for good.
+ *
+ * Use with generate or generate_in_blocks. (One generating thread)
+ *
+ */
+
+
+public final class ProgressBuffer implements ProgressListener {
+    
+    private static final int RESET = -1; // x of a generation_reset in the ring
+    
+    
+    /**
+     * Receives the drained Cells, on the consuming thread
+     */
+    public interface CellConsumer {
+        void accept(int x, int y, int value);
+        /**
+         * Every Cell drained so far is uncommitted (The generation restarted)
+         */
+        default void reset() {}
+    }
+    
+    private final int[] ring; // [slot] (x, y, value) triples
+    private final int capacity; // slots (power of two)
+    private final AtomicLong written; // Cells published by the producer
+    private final AtomicLong read; // Cells consumed by the consumer
+    private volatile boolean closed; // the consumer stopped draining
+    private BooleanSupplier stop; // the stop condition of the generate call (producer thread), or null
+    
+    
+    /**
+     * @param capacity max number of Cells waiting to be drained (rounded up to a power of two)
+     */
+    public ProgressBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 28)) throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        this.capacity = Integer.highestOneBit(capacity * 2 - 1);
+        this.ring = new int[this.capacity * 3];
+        this.written = new AtomicLong();
+        this.read = new AtomicLong();
+    }
+    
+    public void cells_committed(int[] batch, int count) {
+        if (closed) return;
+        long position = written.get();
+        for (int i = 0; i < count; i++) {
+            position = put(position, batch[i * 3], batch[i * 3 + 1], batch[i * 3 + 2]);
+        } written.set(position);
+    }
+    
+    public void generation_reset() {
+        if (closed) return;
+        written.set(put(written.get(), RESET, 0, 0));
+    }
+    
+    /**
+     * The consumer stops draining. The generating thread drops the Cells from now on,
+     * instead of waiting for room in the ring. Can be called from any thread.
+     */
+    public void close() {
+        closed = true;
+    }
+    
+    public boolean is_closed() {
+        return closed;
+    }
+    
+    /**
+     * Passes every Cell published since the last drain to the consumer, in order.
+     * Must only be called by one thread at a time.
+     * @param consumer receives the Cells
+     * @return the number of Cells (and resets) drained
+     */
+    public int drain(CellConsumer consumer) {
+        long position = read.get();
+        long limit = written.get();
+        int mask = capacity - 1;
+        for (long p = position; p < limit; p++) {
+            int slot = (int) (p & mask) * 3;
+            int x = ring[slot];
+            if (x == RESET) consumer.reset();
+            else consumer.accept(x, ring[slot + 1], ring[slot + 2]);
+        } read.set(limit);
+        return (int) (limit - position);
+    }
+    
+    /**
+     * Set by the Solver at the start of every generate call
+     * @param stop true when the call is stopped (timed out or cancelled), or null if it can't be stopped
+     */
+    void set_stop(BooleanSupplier stop) {
+        this.stop = stop;
+    }
+    
+    /**
+     * Writes a triple at the position, waiting for the consumer if the ring is full.
+     * The triple is dropped if the buffer is closed, or the generate call is stopped, while waiting.
+     * @return the next position
+     */
+    private long put(long position, int x, int y, int value) {
+        if (position - read.get() == capacity) {
+            written.set(position); // publish what is written so far, before waiting on it
+            while (position - read.get() == capacity) {
+                if (closed || (stop != null && stop.getAsBoolean())) return position;
+                Thread.yield();
+            }
+        } int slot = (int) (position & (capacity - 1)) * 3;
+        ring[slot] = x;
+        ring[slot + 1] = y;
+        ring[slot + 2] = value;
+        return position + 1;
+    }
+}
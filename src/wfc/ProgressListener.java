@@ -0,0 +1,28 @@
+package wfc;
+
+/**
+ *
+ * Receives the Cells of the output as they are committed (collapsed to a single pattern), in batches.
+ * Set with WFC.set_progress_listener. Called on the generating thread, so the consumer decides
+ * how the cells cross over to other threads. (See ProgressBuffer)
+ *
+ * The batches mirror every write to the output, in order. A Cell can be committed more than once:
+ * A restart uncommits every Cell (generation_reset), and backtracking uncommits Cells without notice,
+ * until they are committed again. When generate returns true, the last value of every Cell is its final value.
+ *
+ */
+
+
+public interface ProgressListener {
+    
+    /**
+     * @param batch (x, y, value) triples of the committed Cells. Only valid during the call
+     * @param count number of Cells in the batch
+     */
+    void cells_committed(int[] batch, int count);
+    
+    /**
+     * Every Cell is uncommitted. Called at the start of every attempt. (The first, and after every restart)
+     */
+    default void generation_reset() {}
+}
@@ -0,0 +1,1138 @@
+package wfc;
+
+import wfc.WFC.Propagation;
+import wfc.utility.BitSet;
+import wfc.utility.IntHeapSet;
+import wfc.utility.IntStack;
+import wfc.utility.LongStack;
+import wfc.utility.PriorityQueue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * Runs the wave function collapse for a WFC.
+ *
+ * The Patterns are immutable and can be shared between threads.
+ * Everything that changes while generating (the Wave, queues, stacks, buffers and the random generator)
+ * is owned by the Solver. So one Solver must only be used by one thread at a time,
+ * but any number of Solvers can generate from the same Patterns concurrently.
+ *
+ */
+
+
+final class Solver {
+    
+    private static final int STOP_CHECK_INTERVAL = 256; // decisions + propagation steps between deadline checks
+    private static final int CHECKPOINT_MAGIC = 0x53434657; // "WFCS"
+    private static final int CHECKPOINT_VERSION = 1;
+    
+    private final Patterns patterns; // All possible patterns used to generate output
+    private final int[] negate_direction; // maps directions to their opposites
+    private final int directions; // 4 (2D patterns), or 6 (3D patterns)
+    private final IntBuffer buffer_0; // buffers used to store pattern indexes, their length is equal to
+    private final IntBuffer buffer_1; // the total pattern count.
+    private final BitSet propagation_mask; // the valid adjacent patterns of a propagating cell
+    private int noise_position; // internal position of the random generator
+    private int noise_seed; // seed of the random generator
+    private Propagation propagation; // propagation strategy used by generate
+    private boolean backtracking; // rewind decisions on contradiction instead of restarting
+    private boolean off_heap; // store the wave outside the Java heap
+    private GenerationListener listener; // receives the metrics of every generate call, or null
+    private Metrics metrics; // counters of the current generate call, or null if nothing is listening
+    private ProgressBatch progress; // publishes the committed Cells, or null
+    private Constraints constraints; // the allowed values of pinned Cells, or null
+    private Map<Integer,BitSet> value_masks; // value -> the patterns with that value. Built on first use
+    private boolean check_collapsed; // propagate to Cells with a single option too (constraint pass)
+    private CancellationToken cancellation; // of the current generate call, or null
+    private long deadline; // System.nanoTime() deadline of the current generate call
+    private boolean has_deadline;
+    private boolean stoppable; // the current call has a deadline or a cancellation token
+    private int stop_countdown; // propagation steps until the next deadline / cancellation check
+    private GenerationStatus stop_status; // why the current call was stopped, or null
+    private int collisions; // collisions of the current generate call
+    private boolean resuming; // the state was read from a checkpoint, and not used by any call since
+    
+    // Generation state. Allocated by generate
+    private Wave wave; // the options, remaining counts and entropies of every cell
+    private int[][] output; // 2D output, or null
+    private int[][][] volume; // 3D output [z][y][x], or null
+    private int[] values; // graph output [cell], or null
+    private Topology topology; // the Cells of the output and their neighbours
+    private int[] neighbours; // [cell * directions + direction] the adjacent cell, or -1 (See Topology)
+    private int width;
+    private int height;
+    private IntStack propagation_stack; // pairs of (direction, cell index) or (option, cell index) for SUPPORT_COUNT
+    private IntHeapSet priority_queue; // uncollapsed cells by entropy
+    private PriorityQueue<AdjacentCell> adjacent_queue;
+    private LongStack trail; // pairs of (removed options, cell index << 32 | word index)
+    private IntStack decisions; // triples of (trail size, cell index, pattern)
+    private BitSet touched_cells; // cells restored by undo
+    private IntStack touched_stack;
+    private boolean allocated_for_backtracking; // the state was allocated with backtracking enabled
+    
+    
+    /**
+     * @param patterns patterns shared by any number of Solvers
+     * @param seed seed used by internal random generator
+     */
+    Solver(Patterns patterns, int seed) {
+        this.patterns = patterns;
+        this.negate_direction = new int[]{ 2, 3, 0, 1, 5, 4 }; // [S,W,N,E,D,U]
+        this.directions = patterns.directions();
+        this.buffer_0 = IntBuffer.allocate(patterns.count());
+        this.buffer_1 = IntBuffer.allocate(patterns.count());
+        this.propagation_mask = new BitSet(patterns.count());
+        this.noise_position = 1337;
+        this.noise_seed = seed;
+        this.propagation = Propagation.BITSET_UNION;
+    }
+    
+    /**
+     * Runs wave function collapse and stores the result in output.
+     * See WFC.generate
+     * @param output storage
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected
+     * @return true if successful
+     */
+    boolean generate(int[][] output, int failure_limit, boolean wrap_around) {
+        return generate(output, failure_limit, wrap_around, null);
+    }
+    
+    /**
+     * Runs wave function collapse with some of the Cells fixed to a pattern up front.
+     * The fixed Cells are collapsed and propagated before any random decision is made,
+     * on every attempt. They are never undone by backtracking.
+     * @param output storage
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected
+     * @param fixed_patterns [cell] pattern the cell is fixed to, or -1 if free. (null if none)
+     * @return true if successful
+     */
+    boolean generate(int[][] output, int failure_limit, boolean wrap_around, int[] fixed_patterns) {
+        return generate(output, failure_limit, wrap_around, fixed_patterns, null, null) == GenerationStatus.SUCCESS;
+    }
+    
+    /**
+     * Runs wave function collapse, until it's done or stopped by the deadline or the cancellation token.
+     * Both are checked every STOP_CHECK_INTERVAL steps. (Decisions and propagation steps)
+     * See WFC.generate
+     * @param output storage
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected
+     * @param fixed_patterns [cell] pattern the cell is fixed to, or -1 if free. (null if none)
+     * @param timeout time allowed, or null
+     * @param cancellation cancels the call from another thread, or null
+     * @return how the call ended
+     */
+    GenerationStatus generate(int[][] output, int failure_limit, boolean wrap_around, int[] fixed_patterns,
+                              Duration timeout, CancellationToken cancellation) {
+        if (directions != 4) throw new IllegalStateException("2D output for 3D patterns");
+        this.output = output;
+        this.volume = null;
+        this.values = null;
+        return run(grid(output[0].length, output.length, 1, wrap_around), failure_limit, fixed_patterns, false, timeout, cancellation);
+    }
+    
+    /**
+     * Runs wave function collapse on a volume, for 3D patterns. See VoxelWFC.generate
+     * @param volume storage [z][y][x]
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected (in all three dimensions)
+     * @param timeout time allowed, or null
+     * @param cancellation cancels the call from another thread, or null
+     * @return how the call ended
+     */
+    GenerationStatus generate(int[][][] volume, int failure_limit, boolean wrap_around,
+                              Duration timeout, CancellationToken cancellation) {
+        if (directions != 6) throw new IllegalStateException("3D output for 2D patterns");
+        this.output = null;
+        this.volume = volume;
+        this.values = null;
+        return run(grid(volume[0][0].length, volume[0].length, volume.length, wrap_around), failure_limit, null, false, timeout, cancellation);
+    }
+    
+    /**
+     * Runs wave function collapse on any Cells and adjacency. See WFC.generate (Topology)
+     * @param topology the Cells and their neighbours (same directions as the patterns)
+     * @param values storage [cell]
+     * @param failure_limit tolerated collisions before termination
+     * @param fixed_patterns [cell] pattern the cell is fixed to, or -1 if free. (null if none)
+     * @param timeout time allowed, or null
+     * @param cancellation cancels the call from another thread, or null
+     * @return how the call ended
+     */
+    GenerationStatus generate(Topology topology, int[] values, int failure_limit, int[] fixed_patterns,
+                              Duration timeout, CancellationToken cancellation) {
+        if (topology.directions() != directions) {
+            throw new IllegalArgumentException("Topology has " + topology.directions() + " directions, the patterns " + directions);
+        } if (values.length < topology.cells()) {
+            throw new IllegalArgumentException("Output too small for the topology: " + values.length);
+        } this.output = null;
+        this.volume = null;
+        this.values = values;
+        return run(topology, failure_limit, fixed_patterns, false, timeout, cancellation);
+    }
+    
+    /**
+     * Runs the constraint pass only. The fixed patterns and the constraints are restricted and
+     * propagated, like before the first decision of generate, and nothing is collapsed.
+     * (The ChunkGenerator uses it to find the pins of a chunk that contradict each other)
+     * Uses the random generator, reset the noise position before the next generate call.
+     * @param output storage (the Cells committed by the constraints are written)
+     * @param fixed_patterns [cell] pattern the cell is fixed to, or -1 if free. (null if none)
+     * @return false if the constraints contradict each other
+     */
+    boolean consistent(int[][] output, int[] fixed_patterns) {
+        if (directions != 4) throw new IllegalStateException("2D output for 3D patterns");
+        this.output = output;
+        this.volume = null;
+        this.values = null;
+        this.stoppable = false;
+        this.stop_status = null;
+        this.resuming = false;
+        boolean reused = initialize_generation(grid(output[0].length, output.length, 1, false));
+        reset_generation(!reused);
+        return apply_constraints(fixed_patterns);
+    }
+    
+    /**
+     * Continues the generation of the checkpoint read by read_checkpoint, into a 2D output.
+     * See WFC.resume
+     * @param output storage (same size as the checkpoint)
+     * @param failure_limit tolerated collisions before termination (including those before the checkpoint)
+     * @param timeout time allowed, or null
+     * @param cancellation cancels the call from another thread, or null
+     * @return how the call ended
+     */
+    GenerationStatus resume(int[][] output, int failure_limit, Duration timeout, CancellationToken cancellation) {
+        if (!resuming) throw new IllegalStateException("No checkpoint to resume");
+        if (directions != 4 || topology.depth() != 1) throw new IllegalStateException("Checkpoint of a volume");
+        if (output.length != topology.height() || output[0].length != topology.width()) {
+            throw new IllegalArgumentException("Output is " + output[0].length + "x" + output.length
+            + ", the checkpoint " + topology.width() + "x" + topology.height());
+        } this.output = output;
+        this.volume = null;
+        this.values = null;
+        return run(topology, failure_limit, null, true, timeout, cancellation);
+    }
+    
+    /**
+     * Continues the generation of the checkpoint read by read_checkpoint, into a volume.
+     * See VoxelWFC.resume
+     * @param volume storage [z][y][x] (same size as the checkpoint)
+     * @param failure_limit tolerated collisions before termination (including those before the checkpoint)
+     * @param timeout time allowed, or null
+     * @param cancellation cancels the call from another thread, or null
+     * @return how the call ended
+     */
+    GenerationStatus resume(int[][][] volume, int failure_limit, Duration timeout, CancellationToken cancellation) {
+        if (!resuming) throw new IllegalStateException("No checkpoint to resume");
+        if (directions != 6) throw new IllegalStateException("Checkpoint of a 2D output");
+        if (volume.length != topology.depth() || volume[0].length != topology.height() || volume[0][0].length != topology.width()) {
+            throw new IllegalArgumentException("Volume is " + volume[0][0].length + "x" + volume[0].length + "x" + volume.length
+            + ", the checkpoint " + topology.width() + "x" + topology.height() + "x" + topology.depth());
+        } this.output = null;
+        this.volume = volume;
+        this.values = null;
+        return run(topology, failure_limit, null, true, timeout, cancellation);
+    }
+    
+    /**
+     * @return the grid topology of the previous call if it has the same dimensions, or a new grid
+     */
+    private Topology grid(int width, int height, int depth, boolean wrap_around) {
+        if (topology != null && topology.is_grid(width, height, depth, wrap_around)) return topology;
+        return directions == 4 ? Topology.grid(width, height, wrap_around) : Topology.grid(width, height, depth, wrap_around);
+    }
+    
+    private GenerationStatus run(Topology topology, int failure_limit, int[] fixed_patterns, boolean resume,
+                                 Duration timeout, CancellationToken cancellation) {
+        if (constraints != null && constraints.cells() != topology.cells()) {
+            throw new IllegalArgumentException("Constraints for " + constraints.cells() + " cells, the output has " + topology.cells());
+        } this.cancellation = cancellation;
+        this.has_deadline = timeout != null;
+        this.deadline = has_deadline ? System.nanoTime() + Math.max(0L, timeout.toNanos()) : 0L;
+        this.stoppable = has_deadline || cancellation != null;
+        this.stop_countdown = STOP_CHECK_INTERVAL;
+        this.stop_status = null;
+        if (progress != null) progress.set_stop(stoppable ? this::stop_requested : null);
+        GenerationEvent event = new GenerationEvent();
+        if (listener == null && !event.isEnabled()) {
+            metrics = null;
+            GenerationStatus status = solve(topology, failure_limit, fixed_patterns, resume);
+            if (progress != null) progress.flush();
+            return status;
+        } if (metrics == null) metrics = new Metrics();
+        metrics.clear();
+        event.begin();
+        long start_time = System.nanoTime();
+        GenerationStatus status = solve(topology, failure_limit, fixed_patterns, resume);
+        if (progress != null) progress.flush();
+        long total_nanos = System.nanoTime() - start_time;
+        event.end();
+        Metrics m = metrics;
+        if (event.shouldCommit()) {
+            event.success = status == GenerationStatus.SUCCESS;
+            event.status = status.name();
+            event.width = topology.width();
+            event.height = topology.height();
+            event.depth = topology.depth();
+            event.patterns = patterns.count();
+            event.propagation = propagation.name();
+            event.collisions = m.collisions;
+            event.restarts = m.restarts;
+            event.collapsed_cells = m.collapsed_cells;
+            event.propagation_steps = m.propagation_steps;
+            event.bans = m.bans;
+            event.peak_stack_depth = m.peak_stack_depth;
+            event.propagation_time = m.propagation_nanos;
+            event.restart_time = m.restart_nanos;
+            event.commit();
+        } if (listener != null) {
+            listener.generation_finished(new GenerationMetrics(status, topology.width(), topology.height(), topology.depth(),
+            m.collisions, m.restarts, m.collapsed_cells, m.propagation_steps, m.bans, m.peak_stack_depth, patterns.extraction_nanos(),
+            m.propagation_nanos, m.restart_nanos, total_nanos));
+        } return status;
+    }
+    
+    /**
+     * generate, without the metrics
+     * @param resume continue the checkpoint read by read_checkpoint, instead of starting over
+     */
+    private GenerationStatus solve(Topology topology, int failure_limit, int[] fixed_patterns, boolean resume) {
+        
+        /*
+            IntBuffers: Not a very clear way of doing this. But ok.
+            These buffers are used throughout the algorithm
+            to store cell pattern indexes. Their capacity is the total number of patterns.
+            Just make sure they don't override each other.
+         */
+        IntBuffer TMP_BUFFER_0 = buffer_0;
+        boolean resumed = resume; // continue the stopped attempt of a checkpoint
+        resuming = false;
+        boolean reused = resumed || initialize_generation(topology);
+        if (!resumed) {
+            collisions = 0;
+            check_collapsed = false;
+        }
+        
+        while (collisions != failure_limit) {
+            
+            boolean pending = false; // propagation was stopped halfway, continue it before the next decision
+            if (progress != null) progress.reset();
+            if (resumed) {
+                resumed = false;
+                write_committed_cells();
+                if (check_collapsed) { // stopped in the constraint pass
+                    if (!propagate_constraints()) {
+                        return stop_status != null ? stop_status : GenerationStatus.CONTRADICTION_LIMIT;
+                    }
+                } else pending = !propagation_stack.isEmpty();
+            } else {
+                if (metrics != null && collisions > 0) {
+                    long restart_time = System.nanoTime();
+                    reset_generation(false);
+                    metrics.restarts++;
+                    metrics.restart_nanos += System.nanoTime() - restart_time;
+                } else reset_generation(collisions == 0 && !reused);
+                // Applying the constraints involves no random decisions.
+                // If they contradict each other once, they always will.
+                if ((fixed_patterns != null || constraints != null) && !apply_constraints(fixed_patterns)) {
+                    return stop_status != null ? stop_status : GenerationStatus.CONTRADICTION_LIMIT;
+                }
+            } boolean success = true;
+            
+            contradiction:
+            
+            while (pending || priority_queue.notEmpty()) {
+                
+                boolean consistent;
+                if (pending) {
+                    pending = false;
+                    consistent = propagate_pending();
+                } else {
+                    // Cells leave the queue as soon as they have a single option left.
+                    // So the popped Cell always has remaining > 1.
+                    if (stoppable && stop_check()) return stop_status;
+                    int popped_cell = priority_queue.pop();
+                    
+                    // Collapse the Cell with the least amount of entropy, and propagate
+                    int trail_mark = trail.size();
+                    int pattern = collapse_cell(popped_cell,TMP_BUFFER_0);
+                    write_output(popped_cell, patterns.value_of(pattern));
+                    if (metrics != null) metrics.collapsed_cells++;
+                    if (backtracking) {
+                        decisions.push(trail_mark);
+                        decisions.push(popped_cell);
+                        decisions.push(pattern);
+                    } consistent = propagate(popped_cell);
+                }
+                while (!consistent) {
+                    if (stop_status != null) return stop_status; // stopped, not a contradiction
+                    collisions++;
+                    if (metrics != null) metrics.collisions++;
+                    if (!backtracking || decisions.isEmpty()) {
+                        success = false;
+                        break contradiction;
+                    } if (collisions == failure_limit) return GenerationStatus.CONTRADICTION_LIMIT;
+                    consistent = backtrack();
+                } if (progress != null) progress.flush();
+            }
+            if (success) return GenerationStatus.SUCCESS;
+        }
+        return GenerationStatus.CONTRADICTION_LIMIT;
+    }
+    
+    /**
+     * Checks the deadline and the cancellation token, every STOP_CHECK_INTERVAL calls.
+     * A stopped call leaves the generation state as it is. It's reset by the next call.
+     * @return true if the current generate call must stop (stop_status is set)
+     */
+    private boolean stop_check() {
+        if (--stop_countdown > 0) return false;
+        stop_countdown = STOP_CHECK_INTERVAL;
+        if (cancellation != null && cancellation.is_cancelled()) {
+            stop_status = GenerationStatus.CANCELLED;
+        } else if (has_deadline && System.nanoTime() - deadline >= 0) {
+            stop_status = GenerationStatus.TIMED_OUT;
+        } return stop_status != null;
+    }
+    
+    /**
+     * The stop condition of stop_check, checked right away. (For a ProgressBuffer waiting on its consumer)
+     * @return true if the cancellation token is cancelled, or the deadline has passed
+     */
+    private boolean stop_requested() {
+        return (cancellation != null && cancellation.is_cancelled()) || (has_deadline && System.nanoTime() - deadline >= 0);
+    }
+    
+    /**
+     * Allocates the state used by a call to generate. The state of the previous call is reused
+     * if the output has the same number of Cells, and the settings have not changed.
+     * (I.e. when generating an output in blocks)
+     * @param topology the Cells of the output and their neighbours
+     * @return true if the state of the previous call is reused, and must be reset
+     */
+    private boolean initialize_generation(Topology topology) {
+        this.topology = topology;
+        this.neighbours = topology.neighbours();
+        this.width = topology.width();
+        this.height = topology.height();
+        int cells = topology.cells();
+        if (wave != null && cells == wave.cells()
+                && wave.support_counts() == (propagation == Propagation.SUPPORT_COUNT)
+                && allocated_for_backtracking == backtracking
+                && wave.off_heap() == off_heap) {
+            return true;
+        } this.allocated_for_backtracking = backtracking;
+        if (wave != null) wave.release();
+        // SUPPORT_COUNT: the support counters are kept by the Wave, on or off heap with the rest of it
+        this.wave = Wave.allocate(cells, patterns, off_heap, propagation == Propagation.SUPPORT_COUNT);
+        this.propagation_stack = new IntStack(64);
+        // Min-heap of cell indexes keyed by entropy. Optimized for updating the order of its elements
+        this.priority_queue = new IntHeapSet(cells);
+        // Regular priority queue, no ordering updates of elements. Just Push and Pop
+        // Sorts adjacent cells by entropy, before propagating by least entropy
+        this.adjacent_queue = new PriorityQueue<>(directions);
+        this.trail = new LongStack(backtracking ? 256 : 0);
+        this.decisions = new IntStack(backtracking ? 64 : 0);
+        this.touched_cells = backtracking ? new BitSet(cells) : new BitSet();
+        this.touched_stack = new IntStack(backtracking ? 64 : 0);
+        return false;
+    }
+    
+    /**
+     * Populates (first attempt) or resets (after a contradiction) the Cells and the priority queue
+     * @param populate true for the first attempt
+     */
+    private void reset_generation(boolean populate) {
+        if (!populate) { // Reached a contradiction and we must reset the WFC
+            priority_queue.clear();
+            while (adjacent_queue.notEmpty()) adjacent_queue.dequeue();
+            propagation_stack.clear();
+        } // initialize the WFC, Populate the priority queue
+        for (int cell = 0; cell < wave.cells(); cell++) {
+            if (!populate) wave.reset(cell);
+            wave.introduce_noise_to_entropy(cell,white_noise() * 0.001f);
+            requeue(cell);
+        } trail.clear();
+        decisions.clear();
+        if (wave.support_counts()) {
+            for (int cell = 0; cell < wave.cells(); cell++) wave.reset_support(cell);
+        }
+    }
+    
+    /**
+     * Restricts the fixed and constrained Cells to their allowed patterns, all of them first.
+     * Then every restriction is propagated together, in one pass. Where the consequences of
+     * two constraints meet, they are propagated once, not once per constraint.
+     * Nothing is recorded as a decision, so backtracking never rewinds past them.
+     * @param fixed_patterns [cell] pattern the cell is fixed to, or -1 if free. (null if none)
+     * @return false if the constraints contradict each other
+     */
+    private boolean apply_constraints(int[] fixed_patterns) {
+        BitSet mask = propagation_mask; // not used by the propagation until the restrictions are done
+        if (fixed_patterns != null) {
+            for (int cell = 0; cell < fixed_patterns.length; cell++) {
+                int pattern = fixed_patterns[cell];
+                if (pattern < 0) continue;
+                mask.clear();
+                mask.setUnchecked(pattern);
+                if (!restrict(cell, mask)) return false;
+            }
+        } if (constraints != null) {
+            for (int cell = 0; cell < constraints.cells(); cell++) {
+                int[] values = constraints.allowed_values(cell);
+                if (values == null) continue;
+                mask.clear();
+                for (int value : values) {
+                    BitSet value_mask = value_mask(value);
+                    if (value_mask != null) mask.or(value_mask);
+                } if (!restrict(cell, mask)) return false;
+            }
+        } // Two pinned Cells can be next to each other. Both have a single option,
+        // and must still be checked against each other.
+        check_collapsed = true;
+        return propagate_constraints();
+    }
+    
+    /**
+     * Propagates the restrictions of the constraint pass. A stopped pass keeps check_collapsed,
+     * so a checkpoint of it is resumed in the constraint pass.
+     * @return false if the constraints contradict each other (or the pass was stopped)
+     */
+    private boolean propagate_constraints() {
+        boolean consistent = propagate_pending();
+        if (stop_status == null) check_collapsed = false;
+        return consistent;
+    }
+    
+    /**
+     * Removes the options of the Cell not in the mask, and queues the Cell for propagation
+     * @param cell index of the Cell
+     * @param mask the allowed patterns
+     * @return false if no option is left
+     */
+    private boolean restrict(int cell, BitSet mask) {
+        if (!propagate_cell(cell, mask)) return true;
+        if (wave.remaining(cell) == 0) return false;
+        requeue(cell);
+        if (propagation == Propagation.BITSET_UNION) {
+            propagation_stack.push(-1); // -1 = NO_DIRECTION
+            propagation_stack.push(cell);
+        } return true;
+    }
+    
+    /**
+     * @return the patterns with the value, or null if none
+     */
+    private BitSet value_mask(int value) {
+        if (value_masks == null) {
+            value_masks = new HashMap<>();
+            int count = patterns.count();
+            for (int pattern = 0; pattern < count; pattern++) {
+                value_masks.computeIfAbsent(patterns.value_of(pattern), v -> new BitSet(count)).setUnchecked(pattern);
+            }
+        } return value_masks.get(value);
+    }
+    
+    /**
+     * Propagates the consequences of removed options. For BITSET_UNION, propagation starts
+     * at the given cell. For SUPPORT_COUNT, the removed options are already on the propagation stack.
+     * @param cell index of the reduced Cell
+     * @return false if propagation reached a contradiction
+     */
+    private boolean propagate(int cell) {
+        if (propagation == Propagation.BITSET_UNION) {
+            // instead of the Cell object itself, we push its index
+            // and the direction it was propagated FROM.
+            // We don't want to propagate back in the opposite direction.
+            // We could but it's not necessary
+            propagation_stack.push(-1); // -1 = NO_DIRECTION
+            propagation_stack.push(cell);
+        } return propagate_pending();
+    }
+    
+    /**
+     * Propagates everything on the propagation stack
+     * @return false if propagation reached a contradiction
+     */
+    private boolean propagate_pending() {
+        if (metrics == null) return propagate_stack();
+        long start_time = System.nanoTime();
+        boolean consistent = propagate_stack();
+        metrics.propagation_nanos += System.nanoTime() - start_time;
+        return consistent;
+    }
+    
+    private boolean propagate_stack() {
+        if (propagation == Propagation.SUPPORT_COUNT) {
+            return propagate_support_count();
+        } return propagate_bitset_union();
+    }
+    
+    private boolean propagate_bitset_union() {
+        
+        IntBuffer TMP_BUFFER_1 = buffer_1;
+        
+        while (!propagation_stack.isEmpty()) {
+            
+            if (metrics != null) metrics.step(propagation_stack.size() >> 1);
+            if (stoppable && stop_check()) return false;
+            int cell_index = propagation_stack.pop();
+            int from_direction = propagation_stack.pop();
+            int first_neighbour = cell_index * directions;
+            IntBuffer options = wave.collect_options(cell_index,TMP_BUFFER_1);
+            
+            for (int to_direction = 0; to_direction < directions; to_direction++) {
+                if (from_direction == to_direction) continue;
+                int adjacent_cell = neighbours[first_neighbour + to_direction];
+                if (adjacent_cell < 0) continue;
+                if (wave.remaining(adjacent_cell) == 1 && !check_collapsed) continue;
+                
+                // sort adjacent cells by entropy (The one with the least will be propagated first)
+                patterns.valid_adjacent_patterns(options, to_direction, propagation_mask);
+                if (propagate_cell(adjacent_cell, propagation_mask)) {
+                    if (wave.remaining(adjacent_cell) == 0) {
+                        while (adjacent_queue.notEmpty()) adjacent_queue.dequeue();
+                        propagation_stack.clear();
+                        return false;
+                    }
+                    adjacent_queue.enqueue(wrap(adjacent_cell, wave.entropy(adjacent_cell), negate_direction[to_direction]));
+                    requeue(adjacent_cell);
+                }
+            }
+            while (adjacent_queue.notEmpty()) {
+                AdjacentCell wrapper = adjacent_queue.dequeue();
+                propagation_stack.push(wrapper.direction());
+                propagation_stack.push(wrapper.cell());
+            }
+        } return true;
+    }
+    
+    private boolean propagate_support_count() {
+        
+        int count = patterns.count();
+        Wave wave = this.wave;
+        
+        while (!propagation_stack.isEmpty()) {
+            
+            if (metrics != null) metrics.step(propagation_stack.size() >> 1);
+            if (stoppable && stop_check()) return false;
+            int cell_index = propagation_stack.pop();
+            int banned_option = propagation_stack.pop();
+            int first_neighbour = cell_index * directions;
+            
+            for (int to_direction = 0; to_direction < directions; to_direction++) {
+                int adjacent_index = neighbours[first_neighbour + to_direction];
+                if (adjacent_index < 0) continue;
+                // the adjacent cell's support FROM the banned cell
+                long offset = ((long) adjacent_index * directions + negate_direction[to_direction]) * count;
+                boolean reduced = false;
+                for (int supported : patterns.adjacent_patterns(banned_option,to_direction)) {
+                    if (wave.add_support(offset + supported, -1) == 0 && wave.has_option(adjacent_index,supported)) {
+                        remove_options(adjacent_index, supported >>> 6, 1L << supported);
+                        reduced = true;
+                    }
+                }
+                if (reduced) {
+                    if (wave.remaining(adjacent_index) == 0) {
+                        // The pending bans are already removed from their cells,
+                        // the support they provided must be subtracted as well.
+                        // Including what remains of the current ban.
+                        shift_support(cell_index, banned_option, -1, to_direction + 1);
+                        drain_support_count();
+                        return false;
+                    }
+                    update_entropy(adjacent_index);
+                    requeue(adjacent_index);
+                }
+            }
+        } return true;
+    }
+    
+    /**
+     * Rewinds the last decision after a contradiction. The state is restored to right before the
+     * decision Cell was collapsed. Then the pattern it collapsed to is banned, and propagated.
+     * @return false if banning the pattern reached a new contradiction
+     */
+    private boolean backtrack() {
+        int pattern = decisions.pop();
+        int cell_index = decisions.pop();
+        int trail_mark = decisions.pop();
+        if (metrics != null) {
+            long start_time = System.nanoTime();
+            undo(trail_mark);
+            metrics.restart_nanos += System.nanoTime() - start_time;
+        } else undo(trail_mark);
+        remove_options(cell_index, pattern >>> 6, 1L << pattern);
+        if (wave.remaining(cell_index) == 0) {
+            if (propagation == Propagation.SUPPORT_COUNT) drain_support_count();
+            return false;
+        } update_entropy(cell_index);
+        requeue(cell_index);
+        return propagate(cell_index);
+    }
+    
+    /**
+     * Restores every removal recorded after the trail mark, and puts the restored Cells back
+     * in the priority queue with their recalculated entropy.
+     * @param trail_mark trail size to rewind to
+     */
+    private void undo(int trail_mark) {
+        while (trail.size() > trail_mark) {
+            long key = trail.pop();
+            long removed = trail.pop();
+            int cell_index = (int) (key >>> 32);
+            int word_index = (int) key;
+            wave.restore_options(cell_index, word_index, removed);
+            if (propagation == Propagation.SUPPORT_COUNT) {
+                int word_bits = word_index << 6;
+                while (removed != 0) {
+                    long t = removed & -removed;
+                    shift_support(cell_index, word_bits + Long.bitCount(t - 1), 1, 0);
+                    removed ^= t;
+                }
+            } if (!touched_cells.getUnchecked(cell_index)) {
+                touched_cells.setUnchecked(cell_index);
+                touched_stack.push(cell_index);
+            }
+        } while (!touched_stack.isEmpty()) {
+            int cell_index = touched_stack.pop();
+            touched_cells.clearUnchecked(cell_index);
+            update_entropy(cell_index);
+            requeue(cell_index);
+        }
+    }
+    
+    /**
+     * Updates the place of the Cell in the priority queue, after its entropy changed.
+     * A Cell with a single option left is written to the output, and removed from the queue.
+     * @param cell index of the Cell (remaining options > 0)
+     */
+    private void requeue(int cell) {
+        if (wave.remaining(cell) == 1) {
+            priority_queue.remove(cell);
+            write_output(cell, patterns.value_of(wave.first_option(cell)));
+        } else priority_queue.set(cell, wave.entropy(cell));
+    }
+    
+    /**
+     * Writes the value of a committed Cell to the output, and to the progress listener
+     * @param cell index of the Cell
+     * @param value the value of its pattern
+     */
+    private void write_output(int cell, int value) {
+        if (values != null) {
+            values[cell] = value;
+            return;
+        } int x = cell % width;
+        if (volume != null) {
+            volume[cell / (width * height)][(cell / width) % height][x] = value;
+            return;
+        } int y = cell / width;
+        output[y][x] = value;
+        if (progress != null) progress.add(x, y, value);
+    }
+    
+    /**
+     * Removes options from a Cell. Records the removal if backtracking,
+     * and pushes the removed options onto the propagation stack if SUPPORT_COUNT.
+     * Does not update the entropy of the Cell.
+     * @param cell index of the Cell
+     * @param word_index index of the bitset word
+     * @param removed the options to remove (must be a subset of the Cell's options)
+     */
+    private void remove_options(int cell, int word_index, long removed) {
+        wave.remove_options(cell, word_index, removed);
+        if (metrics != null) metrics.bans += Long.bitCount(removed);
+        if (backtracking) {
+            long key = ((long) cell << 32) | word_index;
+            // Merge with the previous removal, unless it belongs to an earlier decision.
+            int mark = decisions.isEmpty() ? 0 : decisions.array()[decisions.size() - 3];
+            if (trail.size() > mark && trail.peek() == key) {
+                int delta_index = trail.size() - 2;
+                trail.set(delta_index, trail.get(delta_index) | removed);
+            } else {
+                trail.push(removed);
+                trail.push(key);
+            }
+        } if (propagation == Propagation.SUPPORT_COUNT) {
+            int word_bits = word_index << 6;
+            while (removed != 0) {
+                long t = removed & -removed;
+                propagation_stack.push(word_bits + Long.bitCount(t - 1));
+                propagation_stack.push(cell);
+                removed ^= t;
+            }
+        }
+    }
+    
+    /**
+     * After a contradiction (SUPPORT_COUNT). Subtracts the support of every banned option still
+     * on the propagation stack, without banning anything new. Keeps the counters in line with the
+     * Cells, so that the removals can be undone by adding the support back.
+     */
+    private void drain_support_count() {
+        while (!propagation_stack.isEmpty()) {
+            int cell_index = propagation_stack.pop();
+            int banned_option = propagation_stack.pop();
+            shift_support(cell_index, banned_option, -1, 0);
+        }
+    }
+    
+    /**
+     * Adds amount to the support the option (in cell) provides to the adjacent cells.
+     * @param cell_index index of the cell providing the support
+     * @param option the option providing support
+     * @param amount 1 or -1
+     * @param first_direction the first direction to update (directions below are skipped)
+     */
+    private void shift_support(int cell_index, int option, int amount, int first_direction) {
+        int count = patterns.count();
+        int first_neighbour = cell_index * directions;
+        for (int to_direction = first_direction; to_direction < directions; to_direction++) {
+            int adjacent_index = neighbours[first_neighbour + to_direction];
+            if (adjacent_index < 0) continue;
+            long offset = ((long) adjacent_index * directions + negate_direction[to_direction]) * count;
+            for (int supported : patterns.adjacent_patterns(option,to_direction)) {
+                wave.add_support(offset + supported, amount);
+            }
+        }
+    }
+    
+    /**
+     * Writes every Cell with a single option left to the output. (The output of a resumed checkpoint)
+     */
+    private void write_committed_cells() {
+        for (int cell = 0; cell < wave.cells(); cell++) {
+            if (wave.remaining(cell) == 1) write_output(cell, patterns.value_of(wave.first_option(cell)));
+        } if (progress != null) progress.flush();
+    }
+    
+    /*
+        Checkpoints. The state of a stopped generate call (TIMED_OUT / CANCELLED): the settings, the random
+        generator, the wave, the priority queue, the propagation stack, the support counters, the trail and the
+        decisions. A stop only happens between decisions or between propagation steps, so nothing else is in
+        flight. A Solver of the same patterns continues the stopped attempt where it was stopped. It makes the
+        same decisions, and the result is the same as if the call had never been stopped.
+        
+        The output is not written. It is the value of every Cell with a single option left,
+        rewritten from the wave on resume. (GZIP compressed, big-endian)
+     */
+    
+    /**
+     * @param path checkpoint file (replaced if it exists)
+     * @throws IllegalStateException if the last call was not stopped, or generated a Topology.graph output
+     * @throws IOException if the file could not be written
+     */
+    void write_checkpoint(Path path) throws IOException {
+        if (stop_status == null || wave == null) {
+            throw new IllegalStateException("No stopped generation to checkpoint");
+        } if (!topology.is_grid()) {
+            throw new IllegalStateException("Checkpoints of graph topologies are not supported");
+        } try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path))))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(patterns.fingerprint());
+            out.writeInt(directions);
+            out.writeInt(topology.width());
+            out.writeInt(topology.height());
+            out.writeInt(topology.depth());
+            out.writeBoolean(topology.wrap_around());
+            out.writeByte(propagation.ordinal());
+            out.writeBoolean(backtracking);
+            out.writeInt(noise_seed);
+            out.writeInt(noise_position);
+            out.writeInt(collisions);
+            out.writeBoolean(check_collapsed);
+            wave.write(out);
+            out.writeInt(priority_queue.size());
+            for (int i = 0; i < priority_queue.size(); i++) { // in heap order, read back into the same heap
+                int cell = priority_queue.get(i);
+                out.writeInt(cell);
+                out.writeFloat(priority_queue.key(cell));
+            } write(out, propagation_stack);
+            write(out, decisions);
+            out.writeInt(trail.size());
+            for (int i = 0; i < trail.size(); i++) out.writeLong(trail.get(i));
+            for (long i = 0; i < wave.support_length(); i++) out.writeInt(wave.support(i));
+        }
+    }
+    
+    /**
+     * Reads a checkpoint written by write_checkpoint. The propagation and backtracking of the
+     * checkpoint replace the settings of this Solver. The next call to resume continues it.
+     * @param path checkpoint file
+     * @throws IOException if the file could not be read, or is not a checkpoint of these patterns
+     */
+    void read_checkpoint(Path path) throws IOException {
+        resuming = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) throw new IOException("Not a checkpoint: " + path);
+            int version = in.readInt();
+            if (version != CHECKPOINT_VERSION) throw new IOException("Unsupported checkpoint version: " + version);
+            if (in.readInt() != patterns.fingerprint() || in.readInt() != directions) {
+                throw new IOException("Checkpoint of other patterns: " + path);
+            } int width = in.readInt();
+            int height = in.readInt();
+            int depth = in.readInt();
+            boolean wrap_around = in.readBoolean();
+            int mode = in.readByte();
+            if (mode < 0 || mode >= Propagation.values().length || width < 1 || height < 1 || depth < 1) {
+                throw new IOException("Corrupt checkpoint: " + path);
+            } this.propagation = Propagation.values()[mode];
+            this.backtracking = in.readBoolean();
+            this.noise_seed = in.readInt();
+            this.noise_position = in.readInt();
+            this.collisions = in.readInt();
+            this.check_collapsed = in.readBoolean();
+            initialize_generation(grid(width, height, depth, wrap_around));
+            wave.read(in);
+            priority_queue.clear();
+            int queued = in.readInt();
+            for (int i = 0; i < queued; i++) {
+                int cell = in.readInt();
+                float key = in.readFloat();
+                if (cell < 0 || cell >= wave.cells()) throw new IOException("Corrupt checkpoint: " + path);
+                priority_queue.set(cell, key);
+            } while (adjacent_queue.notEmpty()) adjacent_queue.dequeue();
+            read(in, propagation_stack);
+            read(in, decisions);
+            trail.clear();
+            int trail_size = in.readInt();
+            for (int i = 0; i < trail_size; i++) trail.push(in.readLong());
+            for (long i = 0; i < wave.support_length(); i++) wave.set_support(i, in.readInt());
+        } this.resuming = true;
+    }
+    
+    private static void write(DataOutputStream out, IntStack stack) throws IOException {
+        int[] array = stack.array();
+        out.writeInt(stack.size());
+        for (int i = 0; i < stack.size(); i++) out.writeInt(array[i]);
+    }
+    
+    private static void read(DataInputStream in, IntStack stack) throws IOException {
+        int size = in.readInt();
+        if (size < 0) throw new IOException("Corrupt checkpoint");
+        stack.clear();
+        stack.ensureCapacity(size);
+        for (int i = 0; i < size; i++) stack.push(in.readInt());
+    }
+    
+    /**
+     * @return true if the last generate call was stopped (TIMED_OUT / CANCELLED), and its state is kept
+     */
+    boolean stopped() {
+        return stop_status != null && wave != null;
+    }
+    
+    /**
+     * @param cell index of a collapsed Cell, after a successful generate
+     * @return the pattern the Cell collapsed to
+     */
+    int pattern_of(int cell) {
+        return wave.first_option(cell);
+    }
+    
+    /**
+     * Frees the Wave of the last generation. (Required when stored off heap)
+     * The next generate allocates a new one.
+     */
+    void release() {
+        if (wave != null) {
+            wave.release();
+            wave = null;
+        } resuming = false;
+    }
+    
+    void set_propagation(Propagation propagation) { this.propagation = propagation; }
+    
+    Propagation propagation() { return propagation; }
+    
+    boolean backtracking() { return backtracking; }
+    
+    void set_off_heap(boolean off_heap) { this.off_heap = off_heap; }
+    
+    void set_backtracking(boolean backtracking) { this.backtracking = backtracking; }
+    
+    void set_listener(GenerationListener listener) { this.listener = listener; }
+    
+    void set_constraints(Constraints constraints) { this.constraints = constraints; }
+    
+    void set_progress_listener(ProgressListener listener) {
+        if (listener == null) progress = null;
+        else if (progress == null || progress.listener() != listener) progress = new ProgressBatch(listener);
+    }
+    
+    void set_noise_seed(int seed) { this.noise_seed = seed; }
+    
+    int noise_seed() { return noise_seed; }
+    
+    void reset_noise_position() { noise_position = 1337; }
+    
+    
+    /**
+     * Propagates the cell. The mask is the set of the updated possible options
+     * this Cell can be. If the Cell's remaining options were reduced, A new entropy
+     * is calculated.
+     * @param cell index of the cell to propagate
+     * @param propagation_mask possible states of the cell
+     * @return true if options were reduced as a consequence of propagation
+     */
+    private boolean propagate_cell(int cell, BitSet propagation_mask) {
+        int remaining_prior = wave.remaining(cell);
+        int words_per_cell = wave.words_per_cell();
+        for (int i = 0; i < words_per_cell; i++) {
+            long removed = wave.word(cell,i) & ~propagation_mask.word(i);
+            if (removed != 0L) remove_options(cell, i, removed);
+        } int remaining = wave.remaining(cell);
+        if (remaining < remaining_prior) {
+            if (remaining > 0) update_entropy(cell);
+            return true;
+        } return false;
+    }
+    
+    /**
+     * Calculates the entropy of a Cell with remaining options > 0
+     * @param cell index of the cell to update
+     */
+    private void update_entropy(int cell) {
+        if (wave.remaining(cell) == 1) {
+            wave.set_entropy(cell,0.0f);
+        } else { // The Wave keeps the sums of weights up to date, as options are removed
+            wave.set_entropy(cell,wave.shannon_entropy(cell));
+            wave.introduce_noise_to_entropy(cell,white_noise() * 0.001f);
+        }
+    }
+    
+    /**
+     * Collapses the cell. Selects randomly (weighted) one of its remaining options,
+     * and commits the cell to that option / pattern / state.
+     * @param cell index of the Cell to collapse
+     * @param buffer temp internal buffer, used to collect the options from the bitset
+     * @return The option the Cell collapsed to
+     */
+    private int collapse_cell(int cell, IntBuffer buffer) {
+        wave.collect_options(cell,buffer);
+        int buffer_position = buffer.position();
+        int buffer_limit = buffer.limit();
+        int accumulated = 0;
+        int rand = positive_integer(wave.sum_weights(cell));
+        for (int i = buffer_position; i < buffer_limit; i++) {
+            int pattern = buffer.get(i);
+            accumulated += patterns.frequency_of(buffer.get(i));
+            if (rand <= accumulated) {
+                commit_cell(cell, pattern);
+                return pattern;
+            } // Exception never thrown
+        } throw new IllegalStateException("Unreachable");
+    }
+    
+    /**
+     * Removes every option except the chosen one (through remove_options)
+     * @param cell index of the Cell to commit
+     * @param option the option to commit to
+     */
+    private void commit_cell(int cell, int option) {
+        int words_per_cell = wave.words_per_cell();
+        int option_word = option >>> 6;
+        for (int i = 0; i < words_per_cell; i++) {
+            long kept = i == option_word ? (1L << option) : 0L;
+            long removed = wave.word(cell,i) & ~kept;
+            if (removed != 0L) remove_options(cell, i, removed);
+        } wave.set_entropy(cell,0.0f);
+    }
+    
+    private int positive_integer(int max) { return positive_integer() % (max + 1); }
+    
+    private int positive_integer() { return hash(++noise_position, noise_seed) & 0x7FFF_FFFF;}
+    
+    private float white_noise() { return positive_integer() / (float) 0x7FFF_FFFF; }
+    
+    private int hash(int value, int seed) {
+        long m = (long) value & 0xFFFFFFFFL;
+        m *= 0xB5297AAD;
+        m += seed;
+        m ^= (m >> 8);
+        m += 0x68E31DA4;
+        m ^= (m << 8);
+        m *= 0x1B56C4E9;
+        m ^= (m >> 8);
+        return (int) m;
+    }
+    
+    /*
+        Counters of a generate call. Only updated while something is listening (metrics != null)
+     */
+    
+    private static final class Metrics {
+        int collisions;
+        int restarts;
+        long collapsed_cells;
+        long propagation_steps;
+        long bans;
+        int peak_stack_depth;
+        long propagation_nanos;
+        long restart_nanos;
+        void step(int stack_depth) {
+            propagation_steps++;
+            if (stack_depth > peak_stack_depth) peak_stack_depth = stack_depth;
+        } void clear() {
+            collisions = restarts = peak_stack_depth = 0;
+            collapsed_cells = propagation_steps = bans = 0;
+            propagation_nanos = restart_nanos = 0;
+        }
+    }
+    
+     /*
+        Wrapper object used to sort adjacent propagated Cells, before pushing
+        them onto the propagation stack. The Cell with the highest entropy,
+        will be pushed first. (So that the one with the least entropy will be popped first)
+     */
+    
+    private final static class AdjacentCell implements Comparable<AdjacentCell> {
+        private int cell;
+        private float entropy;
+        private int direction;
+        AdjacentCell set(int cell, float entropy, int direction) {
+            this.cell = cell;
+            this.entropy = entropy;
+            this.direction = direction;
+            return this;
+        } int cell() { return cell; }
+        int direction() { return direction; }
+        public int compareTo(AdjacentCell o) {
+            return Float.compare(entropy,o.entropy);
+        }
+    }
+    
+    private final AdjacentCell[] _wrp_objects = new AdjacentCell[] {
+            new AdjacentCell(), new AdjacentCell(),
+            new AdjacentCell(), new AdjacentCell(),
+            new AdjacentCell(), new AdjacentCell(),
+            new AdjacentCell(), new AdjacentCell()
+    };
+    
+    // "pool" of wrapper objects (never more than 6 used at any given time)
+    private int _next_wrp_obj = -1;
+    private AdjacentCell wrap(int cell, float entropy, int direction) {
+        _next_wrp_obj = (++_next_wrp_obj) & 0x7FFF_FFFF;
+        return _wrp_objects[_next_wrp_obj & 7].set(cell,entropy,direction);
+    }
+    
+}
@@ -0,0 +1,167 @@
+package wfc;
+
+/**
+ *
+ * The Cells of an output, and which Cell is adjacent to which in every direction.
+ *
+ * Precomputed as a flat table: neighbour(cell, direction) = neighbours[cell * directions + direction],
+ * or -1 if the Cell has no neighbour in that direction. Propagation only looks up the table,
+ * it never computes coordinates or wraps them around the edges.
+ *
+ * Directions are those of the patterns: [N,E,S,W] for WFC, [N,E,S,W,U,D] for VoxelWFC.
+ * Adjacency is symmetric. If b is the neighbour of a in a direction, a is the neighbour of b
+ * in the opposite direction. [N,S], [E,W], [U,D]
+ *
+ * grid: rectangular outputs (2D or 3D), with or without the edges connected. Generating into an int[][]
+ * (or an int[][][] for volumes) uses these, with Cell index (z * height + y) * width + x.
+ * graph: any Cells and adjacency. I.e. a map that is not a rectangle, a rectangle with holes,
+ * or edges connected in other ways than wrapping around. The output is one value per Cell.
+ *
+ * Immutable. One Topology can be shared by any number of threads.
+ *
+ */
+
+
+public final class Topology {
+    
+    private final int[] neighbours; // [cell][direction] the adjacent cell, or -1
+    private final int directions;
+    private final int cells;
+    private final int width; // grids: output dimensions. graphs: (cells x 1 x 1)
+    private final int height;
+    private final int depth;
+    private final boolean wrap_around;
+    private final boolean grid; // built by grid
+    
+    
+    private Topology(int[] neighbours, int directions, int width, int height, int depth, boolean wrap_around, boolean grid) {
+        this.neighbours = neighbours;
+        this.directions = directions;
+        this.cells = neighbours.length / directions;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.wrap_around = wrap_around;
+        this.grid = grid;
+    }
+    
+    /**
+     * A rectangular 2D grid, for 4 directions [N,E,S,W] -> [+y,+x,-y,-x]
+     * @param width grid width
+     * @param height grid height
+     * @param wrap_around If you want the edges connected
+     */
+    public static Topology grid(int width, int height, boolean wrap_around) {
+        return grid(width, height, 1, 4, wrap_around);
+    }
+    
+    /**
+     * A rectangular 3D grid, for 6 directions [N,E,S,W,U,D] -> [+y,+x,-y,-x,+z,-z]
+     * @param width grid width
+     * @param height grid height
+     * @param depth grid depth
+     * @param wrap_around If you want the edges connected (in all three dimensions)
+     */
+    public static Topology grid(int width, int height, int depth, boolean wrap_around) {
+        return grid(width, height, depth, 6, wrap_around);
+    }
+    
+    private static Topology grid(int width, int height, int depth, int directions, boolean wrap_around) {
+        if (width < 1 || height < 1 || depth < 1) {
+            throw new IllegalArgumentException("Invalid grid size: " + width + "x" + height + "x" + depth);
+        } long length = (long) width * height * depth * directions;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid too large: " + width + "x" + height + "x" + depth);
+        } int[][] offsets = new int[][]{{0,1,0},{1,0,0},{0,-1,0},{-1,0,0},{0,0,1},{0,0,-1}}; // [N,E,S,W,U,D]
+        int[] neighbours = new int[(int) length];
+        int i = 0;
+        for (int z = 0; z < depth; z++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    for (int direction = 0; direction < directions; direction++) {
+                        int nx = x + offsets[direction][0];
+                        int ny = y + offsets[direction][1];
+                        int nz = z + offsets[direction][2];
+                        if (wrap_around) {
+                            nx = Math.floorMod(nx, width);
+                            ny = Math.floorMod(ny, height);
+                            nz = Math.floorMod(nz, depth);
+                        } else if (nx < 0 || nx == width || ny < 0 || ny == height || nz < 0 || nz == depth) {
+                            neighbours[i++] = -1;
+                            continue;
+                        } neighbours[i++] = (nz * height + ny) * width + nx;
+                    }
+                }
+            }
+        } return new Topology(neighbours, directions, width, height, depth, wrap_around, true);
+    }
+    
+    /**
+     * Any Cells and adjacency. The table is copied and validated.
+     * @param directions 4 (WFC) or 6 (VoxelWFC)
+     * @param neighbours [cell * directions + direction] the adjacent cell, or -1. Must be symmetric
+     * @throws IllegalArgumentException if a neighbour is out of range, or the adjacency is not symmetric
+     */
+    public static Topology graph(int directions, int[] neighbours) {
+        if (directions != 4 && directions != 6) {
+            throw new IllegalArgumentException("Unsupported number of directions: " + directions);
+        } if (neighbours.length == 0 || neighbours.length % directions != 0) {
+            throw new IllegalArgumentException("Table length is not a multiple of the directions: " + neighbours.length);
+        } int[] table = neighbours.clone();
+        int cells = table.length / directions;
+        for (int cell = 0; cell < cells; cell++) {
+            for (int direction = 0; direction < directions; direction++) {
+                int adjacent = table[cell * directions + direction];
+                if (adjacent < -1 || adjacent >= cells) {
+                    throw new IllegalArgumentException("Cell " + cell + ": neighbour out of range: " + adjacent);
+                } if (adjacent >= 0 && table[adjacent * directions + opposite(direction)] != cell) {
+                    throw new IllegalArgumentException("Cell " + cell + ": adjacency to " + adjacent + " is not symmetric");
+                }
+            }
+        } return new Topology(table, directions, cells, 1, 1, false, false);
+    }
+    
+    /**
+     * @return the opposite direction [N,E,S,W,U,D] -> [S,W,N,E,D,U]
+     */
+    public static int opposite(int direction) {
+        return direction < 4 ? direction ^ 2 : direction ^ 1;
+    }
+    
+    /**
+     * @return the adjacent cell in direction, or -1
+     */
+    public int neighbour(int cell, int direction) {
+        return neighbours[cell * directions + direction];
+    }
+    
+    public int directions() { return directions; }
+    
+    public int cells() { return cells; }
+    
+    /**
+     * @return true if this is the grid of the dimensions
+     */
+    boolean is_grid(int width, int height, int depth, boolean wrap_around) {
+        return grid && width == this.width && height == this.height && depth == this.depth && wrap_around == this.wrap_around;
+    }
+    
+    /**
+     * @return true if built by grid
+     */
+    boolean is_grid() { return grid; }
+    
+    boolean wrap_around() { return wrap_around; }
+    
+    /**
+     * @return the table [cell * directions + direction] (Do not modify)
+     */
+    int[] neighbours() { return neighbours; }
+    
+    int width() { return width; }
+    
+    int height() { return height; }
+    
+    int depth() { return depth; }
+    
+}
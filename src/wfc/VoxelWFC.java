@@ -0,0 +1,190 @@
+package wfc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ *
+ * Wave function collapse in three dimensions. (Voxels)
+ *
+ * The training input is a volume [z][y][x]. Every NxNxN window of it is a pattern,
+ * and patterns are adjacent in 6 directions [0,1,2,3,4,5] -> [N,E,S,W,U,D] -> [+y,+x,-y,-x,+z,-z].
+ * Pattern permutations are the 4 rotations around the z-axis and their reflections,
+ * so what is up in the input stays up in the output.
+ *
+ * The Solver is the same as for 2D outputs. The wave is stored flat (struct of arrays), one
+ * entry per Cell at index (z * height + y) * width + x, so a volume costs no more per Cell than an image.
+ * SUPPORT_COUNT keeps (cells x 6 x patterns) ints, which adds up fast in 3D.
+ * I.e. 64x64x64 Cells with 200 patterns is ~1.2 GB. Prefer BITSET_UNION for large volumes,
+ * and set_off_heap to keep the wave (support counters included) out of the Java heap.
+ *
+ * Progress listeners and catalogs are not supported for volumes.
+ *
+ */
+
+
+public class VoxelWFC {
+    
+    
+    private final Patterns patterns; // All possible patterns used to generate output
+    private final Solver solver; // used by generate
+    private WFC.Propagation propagation; // propagation strategy used by generate
+    private boolean backtracking; // rewind decisions on contradiction instead of restarting
+    private boolean off_heap; // store the wave outside the Java heap
+    private GenerationListener listener; // receives the metrics of every generate call, or null
+    private Constraints constraints; // the pinned Cells of every output, or null
+    
+    
+    /**
+     * @param training_volume input to process [z][y][x]
+     * @param seed seed used by internal random generator
+     * @param allow_pattern_permutations allow pattern rotations (around z) and reflections
+     * @param pattern_size N, the width, height and depth of the patterns [2 -> 4]
+     */
+    public VoxelWFC(int[][][] training_volume, int seed, boolean allow_pattern_permutations, int pattern_size) {
+        this.patterns = Patterns.extract_volume(training_volume,pattern_size,allow_pattern_permutations);
+        this.solver = new Solver(patterns,seed);
+        this.propagation = WFC.Propagation.BITSET_UNION;
+    }
+    
+    /**
+     * Runs wave function collapse and stores the result in output.
+     * With backtracking enabled, a contradiction rewinds the last decision
+     * instead of restarting, and every backtrack counts as a collision.
+     * @param output storage [z][y][x]
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected (in all three dimensions)
+     * @return true if successful
+     */
+    public boolean generate(int[][][] output, int failure_limit, boolean wrap_around) {
+        return generate(output,failure_limit,wrap_around,null,null) == GenerationStatus.SUCCESS;
+    }
+    
+    /**
+     * Runs wave function collapse and stores the result in output, like generate,
+     * but stops when the timeout has passed, or when the cancellation token is cancelled.
+     * @param output storage [z][y][x] (partially written unless SUCCESS)
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected (in all three dimensions)
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
+     */
+    public GenerationStatus generate(int[][][] output, int failure_limit, boolean wrap_around, Duration timeout, CancellationToken cancellation) {
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(null);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        try { return solver.generate(output, failure_limit, wrap_around, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
+    }
+    
+    /**
+     * Runs wave function collapse on any Cells and adjacency, and stores the value of every Cell in output.
+     * See Topology.graph
+     * @param topology the Cells and their neighbours in the directions [N,E,S,W,U,D]
+     * @param output storage [cell] (partially written unless SUCCESS)
+     * @param failure_limit tolerated collisions before termination
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
+     */
+    public GenerationStatus generate(Topology topology, int[] output, int failure_limit, Duration timeout, CancellationToken cancellation) {
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(null);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        try { return solver.generate(topology, output, failure_limit, null, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
+    }
+    
+    /**
+     * See WFC.save_checkpoint
+     * @param checkpoint checkpoint file (replaced if it exists)
+     * @throws IllegalStateException if the last generate call was not stopped
+     * @throws IOException if the checkpoint could not be written
+     */
+    public void save_checkpoint(Path checkpoint) throws IOException {
+        solver.write_checkpoint(checkpoint);
+    }
+    
+    /**
+     * Continues the generation of a checkpoint written by save_checkpoint. See WFC.resume
+     * @param checkpoint checkpoint file
+     * @param output storage [z][y][x] (same size as the checkpoint)
+     * @param failure_limit tolerated collisions before termination
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
+     * @throws IOException if the checkpoint could not be read, or is not a checkpoint of these patterns
+     */
+    public GenerationStatus resume(Path checkpoint, int[][][] output, int failure_limit, Duration timeout, CancellationToken cancellation) throws IOException {
+        solver.set_listener(listener);
+        solver.set_progress_listener(null);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        solver.read_checkpoint(checkpoint);
+        propagation = solver.propagation();
+        backtracking = solver.backtracking();
+        try { return solver.resume(output, failure_limit, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
+    }
+    
+    /**
+     * See WFC.release
+     */
+    public void release() {
+        solver.release();
+    }
+    
+    /**
+     * @return the number of unique patterns extracted from the training volume
+     */
+    public int pattern_count() { return patterns.count(); }
+    
+    public void set_propagation(WFC.Propagation propagation) { this.propagation = propagation; }
+    
+    public WFC.Propagation propagation() { return propagation; }
+    
+    /**
+     * See WFC.set_backtracking
+     * @param backtracking true to backtrack, false to restart on contradiction
+     */
+    public void set_backtracking(boolean backtracking) { this.backtracking = backtracking; }
+    
+    public boolean backtracking() { return backtracking; }
+    
+    /**
+     * See WFC.set_off_heap. Volumes are where the wave gets large.
+     * @param off_heap true to store the wave off heap
+     */
+    public void set_off_heap(boolean off_heap) { this.off_heap = off_heap; }
+    
+    public boolean off_heap() { return off_heap; }
+    
+    /**
+     * See WFC.set_generation_listener. The metrics have the depth of the volume.
+     * @param listener the listener, or null to stop listening
+     */
+    public void set_generation_listener(GenerationListener listener) { this.listener = listener; }
+    
+    public GenerationListener generation_listener() { return listener; }
+    
+    /**
+     * See WFC.set_constraints. Constraints(width, height, depth) for volumes
+     * @param constraints the pinned Cells, or null to generate freely
+     */
+    public void set_constraints(Constraints constraints) { this.constraints = constraints; }
+    
+    public Constraints constraints() { return constraints; }
+    
+    public void set_noise_seed(int seed) { solver.set_noise_seed(seed); }
+    
+    public void reset_noise_position() { solver.reset_noise_position(); }
+    
+}
@@ -1,22 +1,31 @@
 package wfc;
 
-import wfc.utility.BitSet;
-import wfc.utility.HeapSet;
-import wfc.utility.IntStack;
-import wfc.utility.PriorityQueue;
-
-import java.nio.IntBuffer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  *
  * Notes:
  *
  * "Option / Pattern / State" is used interchangeably.
- * It is the index of a specific 3x3 pattern.
+ * It is the index of a specific NxN pattern (3x3 by default).
  * "Value" on the other hand refer to the actual value in the output.
- * In a 3x3 Pattern, the "Value" is the center tile.
+ * In a 3x3 Pattern, the "Value" is the center tile. (See Patterns for other sizes)
  *
  * Directions are represented by [0,1,2,3] -> [N,E,S,W]
+ * The neighbours of every Cell are looked up in a precomputed Topology. (A grid for int[][] outputs)
+ *
+ * The Patterns extracted from the training input are immutable, and shared by every
+ * generation. The state of a generation is owned by a Solver. generate uses the
+ * Solver of this WFC, while generate_batch creates one Solver per output.
  *
  * @author Frederik Dahl
  * 05/05/2023
@@ -27,10 +36,13 @@ public class WFC {
     
     
     private final Patterns patterns; // All possible patterns used to generate output
-    private final int[][] cardinals_array; // Directional offset array
-    private final int[] negate_direction; // maps directions to their opposites
-    private int noise_position; // internal position of the random generator
-    private int noise_seed; // seed of the random generator
+    private final Solver solver; // used by generate
+    private Propagation propagation; // propagation strategy used by generate
+    private boolean backtracking; // rewind decisions on contradiction instead of restarting
+    private boolean off_heap; // store the wave of generate / generate_batch outside the Java heap
+    private GenerationListener listener; // receives the metrics of every generate call, or null
+    private ProgressListener progress_listener; // receives the committed Cells of generate / generate_in_blocks, or null
+    private Constraints constraints; // the pinned Cells of every output, or null
     
     
     /**
@@ -39,313 +51,373 @@ public class WFC {
      * @param allow_pattern_permutations allow pattern rotations and reflections
      */
     public WFC(int[][] training_input, int seed, boolean allow_pattern_permutations) {
-        patterns = new Patterns(training_input,allow_pattern_permutations);
-        cardinals_array = new int[][]{{0,1},{1,0},{0,-1},{-1,0}}; // [N,E,S,W]
-        negate_direction = new int[]{ 2, 3, 0, 1 }; // [S,W,N,E]
-        noise_position = 1337;
-        noise_seed = seed;
+        this(training_input,seed,allow_pattern_permutations,3);
+    }
+    
+    /**
+     * @param training_input input to process
+     * @param seed seed used by internal random generator
+     * @param allow_pattern_permutations allow pattern rotations and reflections
+     * @param pattern_size N, the width and height of the patterns [2 -> 5]
+     */
+    public WFC(int[][] training_input, int seed, boolean allow_pattern_permutations, int pattern_size) {
+        this(Patterns.extract(training_input,pattern_size,allow_pattern_permutations),seed);
+    }
+    
+    /**
+     * Loads the patterns from a catalog written by save_catalog, instead of extracting them again.
+     * @param catalog catalog file
+     * @param seed seed used by internal random generator
+     * @throws IOException if the catalog could not be read
+     */
+    public WFC(Path catalog, int seed) throws IOException {
+        this(Patterns.read(catalog),seed);
+    }
+    
+    private WFC(Patterns patterns, int seed) {
+        this.patterns = patterns;
+        this.solver = new Solver(patterns,seed);
+        this.propagation = Propagation.BITSET_UNION;
     }
     
+    /**
+     * Writes the patterns to a versioned binary catalog. (Values, weights and adjacency)
+     * Loading the catalog skips pattern extraction and adjacency matching.
+     * Generating from a loaded catalog gives the same output as from this WFC.
+     * @param catalog catalog file (replaced if it exists)
+     * @throws IOException if the catalog could not be written
+     */
+    public void save_catalog(Path catalog) throws IOException {
+        patterns.write(catalog);
+    }
+    
+    /**
+     * Propagation strategies. Both produce valid outputs, but they consume the
+     * random generator differently, so the same seed will not give the same output.
+     *
+     * BITSET_UNION: The valid adjacent patterns of every remaining option of the propagating Cell
+     * are OR'ed together into a mask, and the adjacent Cell is AND'ed with that mask.
+     * The cost of a step is proportional to (remaining options x bitset words).
+     *
+     * SUPPORT_COUNT: (AC-4) Every Cell keeps a counter per direction and pattern. The counter is the
+     * number of options in the adjacent Cell that "supports" the pattern. Banning an option decrements
+     * the counters of the adjacent Cells, and a pattern is banned only when its counter reaches zero.
+     * Every ban is handled exactly once. Requires (cells x directions x patterns) ints of memory.
+     * (4 directions for WFC, 6 for VoxelWFC and 3D Topology grids)
+     */
+    public enum Propagation { BITSET_UNION, SUPPORT_COUNT }
+    
     /**
      * Runs wave function collapse and stores the result in output.
      * output is continuously updated and could be rendered while running
      * if you are processing an image.
+     * With backtracking enabled, a contradiction rewinds the last decision
+     * instead of restarting, and every backtrack counts as a collision.
      * @param output storage
      * @param failure_limit tolerated collisions before termination
      * @param wrap_around If you want the results edges connected
      * @return true if successful
      */
     public boolean generate(int[][] output, int failure_limit, boolean wrap_around) {
-        
-        boolean success;
-        int collisions = 0;
-        int width = output[0].length;
-        int height = output.length;
-        /*
-            IntBuffers: Not a very clear way of doing this. But ok.
-            These buffers are used throughout the algorithm
-            to store cell pattern indexes. Their capacity is the total number of patterns.
-            And we "borrow" them from the Patterns object, where they are initialized.
-            Just make sure they don't override each other.
-         */
-        IntBuffer TMP_BUFFER_0 = patterns.borrow_buffer_0();
-        IntBuffer TMP_BUFFER_1 = patterns.borrow_buffer_1();
-        
-        Cell[][] cells = new Cell[height][width];
-        IntStack propagation_stack = new IntStack(64);
-        // HeapSet is a priority queue optimized for updating the order of its elements
-        HeapSet<Cell> priority_queue = new HeapSet<>(width * height);
-        // Regular priority queue, no ordering updates of elements. Just Push and Pop
-        // Sorts adjacent cells by entropy, before propagating by least entropy
-        PriorityQueue<AdjacentCell> adjacent_queue = new PriorityQueue<>(4);
-    
-        while (collisions != failure_limit) {
-        
-            if (collisions == 0) {
-                // initialize the WFC, Populate Cell[][] and priority queue
-                for (int r = 0; r < height; r++) {
-                    for (int c = 0; c < width; c++) {
-                        Cell cell = new Cell(c, r, patterns);
-                        cells[r][c] = cell;
-                        cell.introduce_noise_to_entropy(white_noise() * 0.001f);
-                        priority_queue.set(cell);
-                    }
-                }
-            } else { // Reached a contradiction and we must reset the WFC
-                while (priority_queue.notEmpty()) priority_queue.pop();
-                while (adjacent_queue.notEmpty()) adjacent_queue.dequeue();
-                propagation_stack.clear();
-                for (int r = 0; r < height; r++) {
-                    for (int c = 0; c < width; c++) {
-                        Cell cell = cells[r][c];
-                        cell.reset(patterns);
-                        cell.introduce_noise_to_entropy(white_noise() * 0.001f);
-                        priority_queue.set(cell);
-                    }
-                }
-            }
-            success = true;
-        
-            collision:
-        
-            while (priority_queue.notEmpty()) {
-                
-                Cell popped_cell = priority_queue.pop();
-                int remaining = popped_cell.remaining_options();
-                if (remaining <= 0) throw new IllegalStateException("Unreachable");
-                if (remaining == 1) {
-                    int pattern = popped_cell.collect_options(TMP_BUFFER_0).get(0);
-                    output[popped_cell.y()][popped_cell.x()] = patterns.value_of(pattern);
-                } else { // remaining > 1 atp.
-                    
-                    // Collapse the Cell with the least amount of entropy,
-                    // and push it onto the propagation stack
-                    int pattern = collapse_cell(popped_cell,TMP_BUFFER_0);
-                    output[popped_cell.y()][popped_cell.x()] = patterns.value_of(pattern);
-                    // instead of the Cell object itself, we push its position
-                    // and the direction it was propagated FROM.
-                    // We don't want to propagate back in the opposite direction.
-                    // We could but it's not necessary
-                    propagation_stack.push(4); // 4 = NO_DIRECTION
-                    propagation_stack.push(popped_cell.position());
-                
-                    while (!propagation_stack.isEmpty()) {
-                        
-                        int position = propagation_stack.pop();
-                        int from_direction = propagation_stack.pop();
-                        int cx = position & 0xFFFF;
-                        int cy = (position >> 16) & 0xFFFF;
-                        Cell current_cell = cells[cy][cx];
-                        IntBuffer options = current_cell.collect_options(TMP_BUFFER_1);
-                    
-                        for (int to_direction = 0; to_direction < 4; to_direction++) {
-                            if (from_direction == to_direction) continue;
-                            int[] dir_offset = cardinals_array[to_direction];
-                            int nx = cx + dir_offset[0];
-                            int ny = cy + dir_offset[1];
-                            if (wrap_around) {
-                                nx = nx < 0 ? (width - 1) : nx % width;
-                                ny = ny < 0 ? (height - 1) : ny % height;
-                            } else if (nx < 0 || nx == width || ny < 0 || ny == height) continue;
-                            Cell adjacent_cell = cells[ny][nx];
-                            if (adjacent_cell.remaining_options() == 1) continue;
-                        
-                            // sort adjacent cells by entropy (The one with the least will be propagated first)
-                            BitSet propagation_mask = patterns.valid_adjacent_patterns(options, to_direction);
-                            if (propagate_cell(adjacent_cell, propagation_mask,TMP_BUFFER_0)) {
-                                remaining = adjacent_cell.remaining_options();
-                                if (remaining == 0) {
-                                    collisions++;
-                                    success = false;
-                                    break collision;
-                                }
-                                adjacent_queue.enqueue(wrap(adjacent_cell, negate_direction[to_direction]));
-                                priority_queue.set(adjacent_cell);
-                            }
-                        }
-                        while (adjacent_queue.notEmpty()) {
-                            AdjacentCell wrapper = adjacent_queue.dequeue();
-                            propagation_stack.push(wrapper.direction());
-                            propagation_stack.push(wrapper.cell().position());
-                        }
-                    }
-                }
-            }
-            if (success) return true;
-        }
-        return false;
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(progress_listener);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        try { return solver.generate(output, failure_limit, wrap_around);
+        } finally { if (off_heap) solver.release(); }
     }
     
+    /**
+     * Runs wave function collapse and stores the result in output, like generate,
+     * but stops when the timeout has passed, or when the cancellation token is cancelled.
+     * Both are checked cheaply inside the propagation loop, so a stopped call returns within
+     * a few hundred propagation steps. The next call starts over.
+     * @param output storage (partially written unless SUCCESS)
+     * @param failure_limit tolerated collisions before termination
+     * @param wrap_around If you want the results edges connected
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
+     */
+    public GenerationStatus generate(int[][] output, int failure_limit, boolean wrap_around, Duration timeout, CancellationToken cancellation) {
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(progress_listener);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        try { return solver.generate(output, failure_limit, wrap_around, null, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
+    }
     
-    public void set_noise_seed(int seed) { this.noise_seed = seed; }
+    /**
+     * Writes the state of the last generate call to a checkpoint file, if it was stopped (TIMED_OUT / CANCELLED).
+     * The wave, the priority queue, the propagation stack, the trail, the random generator and the settings.
+     * The checkpoint can be resumed later, by any WFC with the same patterns. I.e. after a restart of the
+     * process, or on another machine. Written GZIP compressed. Not supported for generate (Topology).
+     * @param checkpoint checkpoint file (replaced if it exists)
+     * @throws IllegalStateException if the last generate call was not stopped
+     * @throws IOException if the checkpoint could not be written
+     */
+    public void save_checkpoint(Path checkpoint) throws IOException {
+        solver.write_checkpoint(checkpoint);
+    }
     
-    public void reset_noise_position() { noise_position = 1337; }
+    /**
+     * Continues the generation of a checkpoint written by save_checkpoint. The Cells committed before the
+     * checkpoint are written to the output first. The generation continues exactly where it was stopped,
+     * with the same random generator, so the output is the same as if it had never been stopped.
+     * The propagation and backtracking of the checkpoint are set on this WFC. Set the same constraints
+     * as the stopped call. Collisions before the checkpoint count towards the failure limit.
+     * A resumed call that is stopped again can be checkpointed again.
+     * @param checkpoint checkpoint file
+     * @param output storage (same size as the checkpoint)
+     * @param failure_limit tolerated collisions before termination
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
+     * @throws IOException if the checkpoint could not be read, or is not a checkpoint of these patterns
+     */
+    public GenerationStatus resume(Path checkpoint, int[][] output, int failure_limit, Duration timeout, CancellationToken cancellation) throws IOException {
+        solver.set_listener(listener);
+        solver.set_progress_listener(progress_listener);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        solver.read_checkpoint(checkpoint);
+        propagation = solver.propagation();
+        backtracking = solver.backtracking();
+        try { return solver.resume(output, failure_limit, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
+    }
     
+    /**
+     * Frees the state kept by a stopped generate call. (For save_checkpoint)
+     * Only needed off heap, where it's not freed by the garbage collector. The next generate call also frees it.
+     */
+    public void release() {
+        solver.release();
+    }
     
     /**
-     * Propagates the cell. The mask is the set of the updated possible options
-     * this Cell can be. If the Cell's remaining options were reduced, A new entropy
-     * is calculated.
-     * @param cell cell to propagate
-     * @param propagation_mask possible states of the cell
-     * @param buffer temp internal buffer, used to collect the options from the bitset
-     * @return true if options were reduced as a consequence of propagation
+     * Runs wave function collapse on any Cells and adjacency, and stores the value of every Cell in output.
+     * I.e. a map that is not a rectangle. See Topology.graph
+     * The progress listener is not used.
+     * @param topology the Cells and their neighbours in the directions [N,E,S,W]
+     * @param output storage [cell]
+     * @param failure_limit tolerated collisions before termination
+     * @return true if successful
      */
-    private boolean propagate_cell(Cell cell, BitSet propagation_mask, IntBuffer buffer) {
-        int remaining_prior = cell.remaining_options();
-        BitSet options_mask = cell.options_mask();
-        options_mask.and(propagation_mask);
-        cell.set_remaining_options(options_mask.cardinality());
-        int remaining = cell.remaining_options();
-        if (remaining < remaining_prior) {
-            if (remaining > 0) {
-                if (remaining == 1) {
-                    cell.set_entropy(0.0f);
-                } else { int W = 0;
-                    cell.collect_options(buffer);
-                    int buffer_position = buffer.position();
-                    int buffer_limit = buffer.limit();
-                    for (int i = buffer_position; i < buffer_limit; i++) {
-                        W += patterns.frequency_of(buffer.get(i));
-                    } double S = 0;
-                    for (int i = buffer_position; i < buffer_limit; i++) {
-                        int w = patterns.frequency_of(buffer.get(i));
-                        S += w * Math.log(w);
-                    } cell.set_entropy((float) (Math.log(W) - S / W));
-                    // log(W) - (w1*log(w1) + w2*log(w2) + ... + wn*log(wn)) / W
-                    cell.introduce_noise_to_entropy(white_noise() * 0.001f);
-                }
-            } return true;
-        } return false;
+    public boolean generate(Topology topology, int[] output, int failure_limit) {
+        return generate(topology, output, failure_limit, null, null) == GenerationStatus.SUCCESS;
     }
     
     /**
-     * Collapses the cell. Selects randomly (weighted) one of its remaining options,
-     * and commits the cell to that option / pattern / state.
-     * @param cell Cell to collapse
-     * @param buffer temp internal buffer, used to collect the options from the bitset
-     * @return The option the Cell collapsed to
+     * Like generate (Topology), but stops when the timeout has passed, or when the cancellation token is cancelled.
+     * @param topology the Cells and their neighbours in the directions [N,E,S,W]
+     * @param output storage [cell] (partially written unless SUCCESS)
+     * @param failure_limit tolerated collisions before termination
+     * @param timeout time allowed for the call, or null for no deadline
+     * @param cancellation cancels the call from another thread, or null
+     * @return SUCCESS, CONTRADICTION_LIMIT, TIMED_OUT or CANCELLED
      */
-    private int collapse_cell(Cell cell, IntBuffer buffer) {
-        cell.collect_options(buffer);
-        int buffer_position = buffer.position();
-        int buffer_limit = buffer.limit();
-        int accumulated = 0;
-        int sum_weight = 0;
-        for (int i = buffer_position; i < buffer_limit; i++) {
-            sum_weight += patterns.frequency_of(buffer.get(i));
-        } int rand = positive_integer(sum_weight);
-        for (int i = buffer_position; i < buffer_limit; i++) {
-            int pattern = buffer.get(i);
-            accumulated += patterns.frequency_of(buffer.get(i));
-            if (rand <= accumulated) {
-                cell.commit_to_option(pattern);
-                return pattern;
-            } // Exception never thrown
-        } throw new IllegalStateException("Unreachable");
+    public GenerationStatus generate(Topology topology, int[] output, int failure_limit, Duration timeout, CancellationToken cancellation) {
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(null);
+        solver.set_constraints(constraints);
+        solver.set_off_heap(off_heap);
+        try { return solver.generate(topology, output, failure_limit, null, timeout, cancellation);
+        } finally { if (off_heap && !solver.stopped()) solver.release(); }
     }
     
-    private int positive_integer(int max) { return positive_integer() % (max + 1); }
+    /**
+     * Runs wave function collapse on overlapping blocks of the output, one block at a time.
+     * Every block is solved constrained by the solved Cells around it, and a contradiction only
+     * restarts the block it occurred in. A block that keeps failing is solved again, grown into
+     * its surroundings. Use for large outputs, where restarting the whole output on
+     * contradiction rarely finishes. See BlockSolver
+     * @param output storage
+     * @param block_size width and height of a block
+     * @param overlap cells shared by adjacent blocks [0 -> block_size)
+     * @param failure_limit tolerated collisions before termination (per block)
+     * @param wrap_around If you want the results edges connected (output at least block_size + 2)
+     * @return true if successful
+     */
+    public boolean generate_in_blocks(int[][] output, int block_size, int overlap, int failure_limit, boolean wrap_around) {
+        solver.set_propagation(propagation);
+        solver.set_backtracking(backtracking);
+        solver.set_listener(listener);
+        solver.set_progress_listener(null); // blocks are published once solved
+        solver.set_off_heap(off_heap);
+        try { return new BlockSolver(output, wrap_around, progress_listener, constraints).generate(solver, block_size, overlap, failure_limit);
+        } finally { if (off_heap) solver.release(); }
+    }
     
-    private int positive_integer() { return hash(++noise_position, noise_seed) & 0x7FFF_FFFF;}
+    /**
+     * Runs wave function collapse on overlapping blocks of the output, in parallel on the common ForkJoinPool.
+     * See generate_parallel(output, block_size, overlap, failure_limit, wrap_around, executor)
+     */
+    public boolean generate_parallel(int[][] output, int block_size, int overlap, int failure_limit, boolean wrap_around) {
+        return generate_parallel(output, block_size, overlap, failure_limit, wrap_around, ForkJoinPool.commonPool());
+    }
     
-    private float white_noise() { return positive_integer() / (float) 0x7FFF_FFFF; }
+    /**
+     * Runs wave function collapse on overlapping blocks of the output, in parallel.
+     * Like generate_in_blocks, but blocks that are at least one Cell apart are solved concurrently.
+     * The blocks are solved in up to 9 phases (4 without wrap_around). A block that fails is rolled back,
+     * and solved again grown, before the next phase. Every block gets its own seed derived from the
+     * noise seed, so the output is the same for any number of threads. See BlockSolver
+     * @param output storage
+     * @param block_size width and height of a block
+     * @param overlap cells shared by adjacent blocks [0 -> block_size / 2)
+     * @param failure_limit tolerated collisions before termination (per block)
+     * @param wrap_around If you want the results edges connected (output at least block_size + 2)
+     * @param executor solves the blocks of a phase
+     * @return true if successful
+     */
+    public boolean generate_parallel(int[][] output, int block_size, int overlap, int failure_limit, boolean wrap_around, ExecutorService executor) {
+        return new BlockSolver(output, wrap_around, null, constraints).generate_parallel(patterns, propagation, backtracking, listener,
+        solver.noise_seed(), block_size, overlap, failure_limit, executor);
+    }
     
-    private int hash(int value, int seed) {
-        long m = (long) value & 0xFFFFFFFFL;
-        m *= 0xB5297AAD;
-        m += seed;
-        m ^= (m >> 8);
-        m += 0x68E31DA4;
-        m ^= (m << 8);
-        m *= 0x1B56C4E9;
-        m ^= (m >> 8);
-        return (int) m;
+    /**
+     * Generates one output per seed in parallel on the common ForkJoinPool.
+     * See generate_batch(outputs, seeds, failure_limit, wrap_around, executor)
+     */
+    public boolean[] generate_batch(int[][][] outputs, int[] seeds, int failure_limit, boolean wrap_around) {
+        return generate_batch(outputs, seeds, failure_limit, wrap_around, ForkJoinPool.commonPool());
     }
     
-    private void print(int[][] array) {
-        int rows = array.length;
-        int cols = array[0].length;
-        StringBuilder builder = new StringBuilder();
-        for (int r = 0; r < rows; r++) {
-            builder.append("\n");
-            for (int c = 0; c < cols; c++)
-                builder.append(array[r][c]).append("  ");
-        } System.out.println(builder);
+    /**
+     * Generates one output per seed in parallel. Every output gets its own Solver,
+     * all sharing the patterns of this WFC. The result of each output is the same as
+     * calling generate on a new WFC with that seed. Blocks until every output is done.
+     * Does not affect the random generator used by generate.
+     * @param outputs storage, one per seed
+     * @param seeds seed of the random generator, one per output
+     * @param failure_limit tolerated collisions before termination (per output)
+     * @param wrap_around If you want the results edges connected
+     * @param executor executes the generations
+     * @return true for every output successfully generated
+     */
+    public boolean[] generate_batch(int[][][] outputs, int[] seeds, int failure_limit, boolean wrap_around, ExecutorService executor) {
+        if (outputs.length != seeds.length) {
+            throw new IllegalArgumentException("outputs.length != seeds.length: " + outputs.length + " != " + seeds.length);
+        } final Propagation propagation = this.propagation;
+        final boolean backtracking = this.backtracking;
+        final GenerationListener listener = this.listener;
+        final Constraints constraints = this.constraints;
+        final boolean off_heap = this.off_heap;
+        List<Callable<Boolean>> tasks = new ArrayList<>(outputs.length);
+        for (int i = 0; i < outputs.length; i++) {
+            final int[][] output = outputs[i];
+            final int seed = seeds[i];
+            tasks.add(() -> {
+                Solver batch_solver = new Solver(patterns,seed);
+                batch_solver.set_propagation(propagation);
+                batch_solver.set_backtracking(backtracking);
+                batch_solver.set_listener(listener);
+                batch_solver.set_constraints(constraints);
+                batch_solver.set_off_heap(off_heap);
+                try { return batch_solver.generate(output, failure_limit, wrap_around);
+                } finally { if (off_heap) batch_solver.release(); }
+            });
+        } return invoke_all(tasks, executor);
     }
     
-    private static final class Cell implements Comparable<Cell> {
-        private final BitSet options; // remaining options represented by a set of bits
-        private final int position; // position of cell (16 bit x/ 16 bit y)
-        private int remaining; // options remaining count (number of set bits in options)
-        private float entropy; // the calculated shannon entropy (0 when the cell is collapsed)
-        Cell(int x, int y, Patterns patterns) {
-            this.position = ((x & 0xFFFF) | (y & 0xFFFF) << 16);
-            this.options = new BitSet(patterns.super_position());
-            this.remaining = patterns.count();
-            this.entropy = patterns.super_entropy();
-        }
-        void reset(Patterns patterns) {
-            if (remaining != patterns.count()) {
-                options.or(patterns.super_position());
-                remaining = patterns.count();
-                entropy = patterns.super_entropy();
+    /**
+     * Executes the tasks and waits for all of them. Exceptions thrown by a task are rethrown.
+     * @param tasks generations
+     * @param executor executes the tasks
+     * @return the result of every task
+     */
+    static boolean[] invoke_all(List<Callable<Boolean>> tasks, ExecutorService executor) {
+        boolean[] results = new boolean[tasks.size()];
+        try { List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < results.length; i++) {
+                results[i] = futures.get(i).get();
             }
-        }
-        void set_entropy(float entropy) { this.entropy = entropy; }
-        void introduce_noise_to_entropy(float noise) { entropy += noise; }
-        void set_remaining_options(int remaining) { this.remaining = remaining; }
-        void commit_to_option(int option) {
-            options.clear();
-            options.set(option);
-            entropy = 0.0f;
-            remaining = 1;
-        }
-        IntBuffer collect_options(IntBuffer dst) {
-            options.indices(dst.clear(), remaining);
-            return dst.flip();
-        }
-        BitSet options_mask() { return options; }
-        int remaining_options() { return remaining; }
-        int position() { return position; }
-        float entropy() { return entropy; }
-        int x() { return position & 0xFFFF; }
-        int y() { return (position >> 16) & 0xFFFF; }
-        public int compareTo(Cell o) {
-            return Float.compare(o.entropy,entropy);
-        }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while generating", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtime_exception) throw runtime_exception;
+            if (cause instanceof Error error) throw error;
+            throw new IllegalStateException(cause);
+        } return results;
     }
     
-     /*
-        Wrapper object used to sort adjacent propagated Cells, before pushing
-        them onto the propagation stack. The Cell with the highest entropy,
-        will be pushed first. (So that the one with the least entropy will be popped first)
+    public void set_propagation(Propagation propagation) { this.propagation = propagation; }
+    
+    public Propagation propagation() { return propagation; }
+    
+    /**
+     * With backtracking enabled, every option removal is recorded on a trail. On contradiction,
+     * the trail is rewound to the last decision, and the pattern chosen is banned from that cell.
+     * The cost of a contradiction is proportional to the work done since the bad decision,
+     * instead of the size of the output.
+     * @param backtracking true to backtrack, false to restart on contradiction
      */
+    public void set_backtracking(boolean backtracking) { this.backtracking = backtracking; }
     
-    private final static class AdjacentCell implements Comparable<AdjacentCell> {
-        private Cell cell;
-        private int direction;
-        AdjacentCell set(Cell cell, int direction) {
-            this.cell = cell;
-            this.direction = direction;
-            return this;
-        } Cell cell() { return cell; }
-        int direction() { return direction; }
-        public int compareTo(AdjacentCell o) {
-            return o.cell.compareTo(cell);
-        }
-    }
+    public boolean backtracking() { return backtracking; }
     
-    private final AdjacentCell[] _wrp_objects = new AdjacentCell[] {
-            new AdjacentCell(), new AdjacentCell(),
-            new AdjacentCell(), new AdjacentCell()
-    };
+    /**
+     * Stores the wave (the options, remaining counts and entropies of every Cell, and the support
+     * counters of SUPPORT_COUNT) outside the Java heap, in direct buffers. The wave is the bulk of the
+     * memory of a generation. (With SUPPORT_COUNT, mostly the support counters: cells x directions x patterns ints)
+     * Off heap, the heap and the garbage collector are not affected by the size of the output,
+     * and SUPPORT_COUNT is not limited to Integer.MAX_VALUE counters. The memory is freed when the
+     * generate call returns, unless it was stopped (kept for save_checkpoint, see release).
+     * Used by generate, generate_in_blocks, generate_batch and resume.
+     * Direct memory is limited by -XX:MaxDirectMemorySize (defaults to the maximum heap size).
+     * @param off_heap true to store the wave off heap
+     */
+    public void set_off_heap(boolean off_heap) { this.off_heap = off_heap; }
     
-    // "pool" of wrapper objects (never more than 4 used at any given time)
-    private int _next_wrp_obj = -1;
-    private AdjacentCell wrap(Cell cell, int direction) {
-        _next_wrp_obj = (++_next_wrp_obj) & 0x7FFF_FFFF;
-        return _wrp_objects[_next_wrp_obj %4].set(cell,direction);
-    }
+    public boolean off_heap() { return off_heap; }
+    
+    /**
+     * Receives the metrics (collisions, decisions, propagation steps, bans, time spent...) of every
+     * generate call. Every output, or every block of generate_in_blocks / generate_parallel.
+     * The same metrics are recorded as "wfc.Generation" Flight Recorder events, when enabled in a recording.
+     * With no listener (and no recording) nothing is counted or timed.
+     * @param listener the listener, or null to stop listening
+     */
+    public void set_generation_listener(GenerationListener listener) { this.listener = listener; }
+    
+    public GenerationListener generation_listener() { return listener; }
+    
+    /**
+     * Receives the Cells of the output as they are committed, in (x, y, value) batches, on the generating thread.
+     * Consumers can apply the deltas instead of reading the output while it's being written.
+     * generate publishes every Cell as it collapses. generate_in_blocks publishes the Cells of
+     * every block once the block is solved. (Without resets) Not used by the batch and parallel generation.
+     * @param listener the listener (i.e. a ProgressBuffer), or null to stop listening
+     */
+    public void set_progress_listener(ProgressListener listener) { this.progress_listener = listener; }
+    
+    public ProgressListener progress_listener() { return progress_listener; }
+    
+    /**
+     * Pins Cells of the outputs to values before generating. (Borders, roads, placed tiles... in-painting)
+     * Used by every generate call, except the ChunkGenerator. The constraints must have as many Cells
+     * as the outputs. They are read, not copied, so don't modify them while generating.
+     * See Constraints
+     * @param constraints the pinned Cells, or null to generate freely
+     */
+    public void set_constraints(Constraints constraints) { this.constraints = constraints; }
+    
+    public Constraints constraints() { return constraints; }
+    
+    Patterns patterns() { return patterns; }
+    
+    public void set_noise_seed(int seed) { solver.set_noise_seed(seed); }
+    
+    public void reset_noise_position() { solver.reset_noise_position(); }
     
 }
@@ -0,0 +1,532 @@
+package wfc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Long.bitCount;
+
+/**
+ *
+ * The state of every Cell in the output, stored as flat arrays. (Struct of arrays)
+ * Cells are identified by their index (y * width + x).
+ *
+ * The options of a Cell are the bits of (words_per_cell) consecutive longs
+ * in one contiguous array, starting at (index * words_per_cell).
+ * Remaining option counts and entropies are stored in parallel arrays.
+ *
+ * Every Cell also keeps the running sums of its options' weights (W) and w * log(w) (S).
+ * The sums are updated with the options removed or restored. So calculating the entropy
+ * is a single log call, instead of summing over every remaining option.
+ *
+ * No objects per Cell. Propagating to an adjacent Cell touches
+ * the same few cache lines, instead of chasing a Cell -> BitSet -> long[].
+ *
+ * With SUPPORT_COUNT propagation, the Wave also keeps the support counters of every Cell.
+ * (directions x patterns ints per Cell) By far the largest array of a generation in that mode.
+ *
+ * Storage: Heap (java arrays) or OffHeap (direct buffers, outside the Java heap).
+ * The Wave is the bulk of the memory of a generation. Off heap, the Java heap and the work
+ * of the garbage collector stay the same for any output size. The memory is freed by release,
+ * when the generation ends, not when the Wave is collected. (Direct memory is limited by
+ * -XX:MaxDirectMemorySize, which defaults to the maximum heap size)
+ *
+ */
+
+
+abstract class Wave {
+    
+    private final Patterns patterns;
+    private final long[] super_position; // the words of a Cell in full superposition
+    private final float super_entropy;
+    private final int super_sum_weights;
+    private final double super_sum_weight_log_weights;
+    private final int[] super_support; // [direction][pattern] the support of a Cell in full superposition, or null
+    final int words_per_cell;
+    final int support_stride; // support counters per Cell (directions x patterns), or 0
+    private final int pattern_count;
+    private final int cells;
+    
+    
+    private Wave(int cells, Patterns patterns, boolean support_counts) {
+        this.super_position = patterns.super_position().array().clone();
+        this.super_entropy = patterns.super_entropy();
+        this.super_sum_weights = patterns.sum_weights();
+        this.super_sum_weight_log_weights = patterns.sum_weight_log_weights();
+        this.patterns = patterns;
+        this.pattern_count = patterns.count();
+        this.words_per_cell = super_position.length;
+        this.cells = cells;
+        if (support_counts) {
+            int directions = patterns.directions();
+            this.super_support = new int[directions * pattern_count];
+            for (int direction = 0; direction < directions; direction++) {
+                for (int pattern = 0; pattern < pattern_count; pattern++) {
+                    super_support[direction * pattern_count + pattern] = patterns.adjacent_patterns(pattern,direction).length;
+                }
+            }
+        } else this.super_support = null;
+        this.support_stride = super_support == null ? 0 : super_support.length;
+    }
+    
+    /**
+     * Creates a new Wave with every Cell in full superposition
+     * @param cells number of cells
+     * @param patterns the patterns the Cells can become
+     * @param off_heap store the Wave outside the Java heap (Must be released)
+     * @param support_counts keep the support counters of every Cell (SUPPORT_COUNT, reset with reset_support)
+     */
+    static Wave allocate(int cells, Patterns patterns, boolean off_heap, boolean support_counts) {
+        Wave wave = off_heap ? new OffHeap(cells, patterns, support_counts) : new Heap(cells, patterns, support_counts);
+        for (int cell = 0; cell < cells; cell++) {
+            wave.reset(cell);
+        } return wave;
+    }
+    
+    /**
+     * Puts the Cell back in full superposition
+     * @param cell cell index
+     */
+    void reset(int cell) {
+        if (remaining(cell) != pattern_count) {
+            set_words(cell * words_per_cell, super_position);
+            set_remaining(cell, pattern_count);
+        } set_sum_weights(cell, super_sum_weights);
+        set_sum_weight_log_weights(cell, super_sum_weight_log_weights);
+        set_entropy(cell, super_entropy);
+    }
+    
+    /**
+     * Puts the support counters of the Cell back to full superposition
+     * @param cell cell index
+     */
+    void reset_support(int cell) {
+        set_supports((long) cell * support_stride, super_support);
+    }
+    
+    /**
+     * @return true if the Wave keeps support counters
+     */
+    boolean support_counts() {
+        return super_support != null;
+    }
+    
+    /**
+     * @return the number of support counters (cells x directions x patterns)
+     */
+    long support_length() {
+        return (long) cells * support_stride;
+    }
+    
+    boolean has_option(int cell, int option) {
+        return (get_word(cell * words_per_cell + (option >>> 6)) & (1L << option)) != 0L;
+    }
+    
+    long word(int cell, int word_index) {
+        return get_word(cell * words_per_cell + word_index);
+    }
+    
+    /**
+     * @param cell cell index
+     * @param word_index index of the word within the Cell
+     * @param removed options to remove (must be a subset of the word)
+     */
+    void remove_options(int cell, int word_index, long removed) {
+        int index = cell * words_per_cell + word_index;
+        set_word(index, get_word(index) & ~removed);
+        set_remaining(cell, remaining(cell) - bitCount(removed));
+        int word_bits = word_index << 6;
+        int W = 0; double S = 0;
+        while (removed != 0) {
+            long t = removed & -removed;
+            int option = word_bits + bitCount(t - 1);
+            W += patterns.frequency_of(option);
+            S += patterns.weight_log_weight_of(option);
+            removed ^= t;
+        } set_sum_weights(cell, sum_weights(cell) - W);
+        set_sum_weight_log_weights(cell, sum_weight_log_weights(cell) - S);
+    }
+    
+    /**
+     * @param cell cell index
+     * @param word_index index of the word within the Cell
+     * @param restored options to restore (must not intersect the word)
+     */
+    void restore_options(int cell, int word_index, long restored) {
+        int index = cell * words_per_cell + word_index;
+        set_word(index, get_word(index) | restored);
+        set_remaining(cell, remaining(cell) + bitCount(restored));
+        int word_bits = word_index << 6;
+        int W = 0; double S = 0;
+        while (restored != 0) {
+            long t = restored & -restored;
+            int option = word_bits + bitCount(t - 1);
+            W += patterns.frequency_of(option);
+            S += patterns.weight_log_weight_of(option);
+            restored ^= t;
+        } set_sum_weights(cell, sum_weights(cell) + W);
+        set_sum_weight_log_weights(cell, sum_weight_log_weights(cell) + S);
+    }
+    
+    /**
+     * Collects the option indexes of the Cell into the buffer (cleared first).
+     * @param cell cell index
+     * @param dst destination buffer, capacity of at least the remaining options
+     * @return the destination buffer, flipped
+     */
+    IntBuffer collect_options(int cell, IntBuffer dst) {
+        dst.clear();
+        int offset = cell * words_per_cell;
+        int count = remaining(cell);
+        for (int i = 0, idx = 0; count > idx; i++) {
+            long word = get_word(offset + i);
+            int word_bits = i << 6;
+            while (word != 0) {
+                long t = word & -word;
+                dst.put(word_bits + bitCount(t - 1));
+                word ^= t;
+                idx++;
+            }
+        } return dst.flip();
+    }
+    
+    /**
+     * @param cell cell index (remaining options > 0)
+     * @return the lowest option of the Cell
+     */
+    int first_option(int cell) {
+        int offset = cell * words_per_cell;
+        for (int i = 0; i < words_per_cell; i++) {
+            long word = get_word(offset + i);
+            if (word != 0L) return (i << 6) + Long.numberOfTrailingZeros(word);
+        } throw new IllegalStateException("Cell has no options");
+    }
+    
+    /**
+     * see. "Shannon Entropy"
+     * log(W) - (w1*log(w1) + w2*log(w2) + ... + wn*log(wn)) / W
+     * @param cell cell index (remaining options > 1)
+     * @return the entropy calculated from the running sums of the Cell
+     */
+    float shannon_entropy(int cell) {
+        double W = sum_weights(cell);
+        return (float) (Math.log(W) - sum_weight_log_weights(cell) / W);
+    }
+    
+    void introduce_noise_to_entropy(int cell, float noise) {
+        set_entropy(cell, entropy(cell) + noise);
+    }
+    
+    int words_per_cell() {
+        return words_per_cell;
+    }
+    
+    int cells() {
+        return cells;
+    }
+    
+    /**
+     * Writes the options, entropy and weight sums of every Cell. (See Solver.write_checkpoint)
+     */
+    void write(DataOutput out) throws IOException {
+        for (int cell = 0; cell < cells; cell++) {
+            int offset = cell * words_per_cell;
+            for (int i = 0; i < words_per_cell; i++) out.writeLong(get_word(offset + i));
+            out.writeFloat(entropy(cell));
+            out.writeInt(sum_weights(cell));
+            out.writeDouble(sum_weight_log_weights(cell));
+        }
+    }
+    
+    /**
+     * Reads the Cells written by write. The remaining counts are counted from the options.
+     */
+    void read(DataInput in) throws IOException {
+        for (int cell = 0; cell < cells; cell++) {
+            int offset = cell * words_per_cell;
+            int count = 0;
+            for (int i = 0; i < words_per_cell; i++) {
+                long word = in.readLong();
+                set_word(offset + i, word);
+                count += bitCount(word);
+            } set_remaining(cell, count);
+            set_entropy(cell, in.readFloat());
+            set_sum_weights(cell, in.readInt());
+            set_sum_weight_log_weights(cell, in.readDouble());
+        }
+    }
+    
+    /*
+        Storage. The words are indexed (cell * words_per_cell + word index)
+     */
+    
+    abstract long get_word(int index);
+    
+    abstract void set_word(int index, long word);
+    
+    /**
+     * Copies the words into the storage, starting at index
+     */
+    abstract void set_words(int index, long[] words);
+    
+    abstract int remaining(int cell);
+    
+    abstract void set_remaining(int cell, int remaining);
+    
+    abstract float entropy(int cell);
+    
+    abstract void set_entropy(int cell, float entropy);
+    
+    /**
+     * @param cell cell index
+     * @return the sum of the weights of the remaining options
+     */
+    abstract int sum_weights(int cell);
+    
+    abstract void set_sum_weights(int cell, int sum_weights);
+    
+    abstract double sum_weight_log_weights(int cell);
+    
+    abstract void set_sum_weight_log_weights(int cell, double sum_weight_log_weights);
+    
+    /*
+        The support counters are indexed ((cell * directions + direction) * patterns + pattern)
+     */
+    
+    abstract int support(long index);
+    
+    abstract void set_support(long index, int count);
+    
+    /**
+     * @return the support counter after adding the amount
+     */
+    abstract int add_support(long index, int amount);
+    
+    /**
+     * Copies the counters into the storage, starting at index
+     */
+    abstract void set_supports(long index, int[] counts);
+    
+    /**
+     * @return true if the Wave is stored outside the Java heap
+     */
+    abstract boolean off_heap();
+    
+    /**
+     * Frees the storage. The Wave must not be used after.
+     */
+    abstract void release();
+    
+    
+    private static final class Heap extends Wave {
+    
+        private final long[] options; // [cell][word] remaining options represented by bits
+        private final int[] remaining; // [cell] options remaining count (number of set bits in options)
+        private final float[] entropy; // [cell] the calculated shannon entropy (0 when the cell is collapsed)
+        private final int[] sum_weights; // [cell] sum of the weights of the remaining options
+        private final double[] sum_weight_log_weights; // [cell] sum of w * log(w) of the remaining options
+        private final int[] support; // [cell][direction][pattern] support counters, or null
+    
+        Heap(int cells, Patterns patterns, boolean support_counts) {
+            super(cells, patterns, support_counts);
+            long length = (long) cells * words_per_cell;
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Wave too large: " + cells + " cells with " + patterns.count() + " patterns");
+            } if (support_length() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Output too large for support counting on heap: "
+                + cells + " cells with " + patterns.count() + " patterns (See WFC.set_off_heap)");
+            } this.support = support_counts ? new int[(int) support_length()] : null;
+            this.options = new long[(int) length];
+            this.remaining = new int[cells];
+            this.entropy = new float[cells];
+            this.sum_weights = new int[cells];
+            this.sum_weight_log_weights = new double[cells];
+        }
+    
+        long get_word(int index) { return options[index]; }
+    
+        void set_word(int index, long word) { options[index] = word; }
+    
+        void set_words(int index, long[] words) { System.arraycopy(words,0,options,index,words.length); }
+    
+        int remaining(int cell) { return remaining[cell]; }
+    
+        void set_remaining(int cell, int remaining) { this.remaining[cell] = remaining; }
+    
+        float entropy(int cell) { return entropy[cell]; }
+    
+        void set_entropy(int cell, float entropy) { this.entropy[cell] = entropy; }
+    
+        int sum_weights(int cell) { return sum_weights[cell]; }
+    
+        void set_sum_weights(int cell, int sum_weights) { this.sum_weights[cell] = sum_weights; }
+    
+        double sum_weight_log_weights(int cell) { return sum_weight_log_weights[cell]; }
+    
+        void set_sum_weight_log_weights(int cell, double sum) { this.sum_weight_log_weights[cell] = sum; }
+    
+        int support(long index) { return support[(int) index]; }
+    
+        void set_support(long index, int count) { support[(int) index] = count; }
+    
+        int add_support(long index, int amount) { return support[(int) index] += amount; }
+    
+        void set_supports(long index, int[] counts) { System.arraycopy(counts,0,support,(int) index,counts.length); }
+    
+        boolean off_heap() { return false; }
+    
+        void release() { } // collected with the Wave
+    }
+    
+    /*
+        Direct buffers in native byte order, for every array of the Heap storage. A direct buffer holds
+        at most Integer.MAX_VALUE bytes, so the arrays are split in segments of 2^27 entries. (1 GB of longs)
+        The support counters are indexed by long, so SUPPORT_COUNT is not limited to 2^31 counters off heap.
+        Released with the cleaner of the buffer (sun.misc.Unsafe.invokeCleaner), or by the garbage
+        collector if that is not available.
+     */
+    
+    private static final class OffHeap extends Wave {
+        
+        private static final int SEGMENT_SHIFT = 27; // entries per segment: 2^27
+        private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+        
+        static {
+            Object unsafe = null;
+            Method invoke_cleaner = null;
+            try { Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+                Field field = unsafe_class.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null; // Left to the garbage collector
+                invoke_cleaner = null;
+            } UNSAFE = unsafe;
+            INVOKE_CLEANER = invoke_cleaner;
+        }
+        
+        private List<ByteBuffer> buffers; // the allocated buffers, or null when released
+        private LongBuffer[] options; // [index >>> SEGMENT_SHIFT]
+        private IntBuffer[] remaining; // [cell >>> SEGMENT_SHIFT]
+        private FloatBuffer[] entropy;
+        private IntBuffer[] sum_weights;
+        private DoubleBuffer[] sum_weight_log_weights;
+        private IntBuffer[] support; // [index >>> SEGMENT_SHIFT], or null
+        
+        OffHeap(int cells, Patterns patterns, boolean support_counts) {
+            super(cells, patterns, support_counts);
+            long words = (long) cells * words_per_cell;
+            if (words > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Wave too large: " + cells + " cells with " + patterns.count() + " patterns");
+            } this.buffers = new ArrayList<>();
+            this.options = new LongBuffer[segments(words)];
+            this.remaining = new IntBuffer[segments(cells)];
+            this.entropy = new FloatBuffer[segments(cells)];
+            this.sum_weights = new IntBuffer[segments(cells)];
+            this.sum_weight_log_weights = new DoubleBuffer[segments(cells)];
+            for (int i = 0; i < options.length; i++) {
+                options[i] = segment(words, i, Long.BYTES).asLongBuffer();
+            } for (int i = 0; i < remaining.length; i++) {
+                remaining[i] = segment(cells, i, Integer.BYTES).asIntBuffer();
+                entropy[i] = segment(cells, i, Float.BYTES).asFloatBuffer();
+                sum_weights[i] = segment(cells, i, Integer.BYTES).asIntBuffer();
+                sum_weight_log_weights[i] = segment(cells, i, Double.BYTES).asDoubleBuffer();
+            } if (support_counts) {
+                long counters = support_length(); // not limited to Integer.MAX_VALUE
+                this.support = new IntBuffer[segments(counters)];
+                for (int i = 0; i < support.length; i++) {
+                    support[i] = segment(counters, i, Integer.BYTES).asIntBuffer();
+                }
+            }
+        }
+        
+        private static int segments(long entries) {
+            return (int) ((entries + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        }
+        
+        /**
+         * Allocates a segment of an array (zeroed)
+         * @param entries length of the array
+         * @param segment index of the segment
+         * @param entry_bytes bytes per entry
+         */
+        private ByteBuffer segment(long entries, int segment, int entry_bytes) {
+            long length = Math.min(entries - ((long) segment << SEGMENT_SHIFT), 1L << SEGMENT_SHIFT);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) (length * entry_bytes)).order(ByteOrder.nativeOrder());
+            buffers.add(buffer);
+            return buffer;
+        }
+        
+        long get_word(int index) { return options[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK); }
+        
+        void set_word(int index, long word) { options[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, word); }
+        
+        void set_words(int index, long[] words) { // may cross a segment
+            for (int i = 0; i < words.length; i++) set_word(index + i, words[i]);
+        }
+        
+        int remaining(int cell) { return remaining[cell >>> SEGMENT_SHIFT].get(cell & SEGMENT_MASK); }
+        
+        void set_remaining(int cell, int remaining) { this.remaining[cell >>> SEGMENT_SHIFT].put(cell & SEGMENT_MASK, remaining); }
+        
+        float entropy(int cell) { return entropy[cell >>> SEGMENT_SHIFT].get(cell & SEGMENT_MASK); }
+        
+        void set_entropy(int cell, float entropy) { this.entropy[cell >>> SEGMENT_SHIFT].put(cell & SEGMENT_MASK, entropy); }
+        
+        int sum_weights(int cell) { return sum_weights[cell >>> SEGMENT_SHIFT].get(cell & SEGMENT_MASK); }
+        
+        void set_sum_weights(int cell, int sum_weights) { this.sum_weights[cell >>> SEGMENT_SHIFT].put(cell & SEGMENT_MASK, sum_weights); }
+        
+        double sum_weight_log_weights(int cell) { return sum_weight_log_weights[cell >>> SEGMENT_SHIFT].get(cell & SEGMENT_MASK); }
+        
+        void set_sum_weight_log_weights(int cell, double sum) { this.sum_weight_log_weights[cell >>> SEGMENT_SHIFT].put(cell & SEGMENT_MASK, sum); }
+        
+        int support(long index) { return support[(int) (index >>> SEGMENT_SHIFT)].get((int) index & SEGMENT_MASK); }
+        
+        void set_support(long index, int count) { support[(int) (index >>> SEGMENT_SHIFT)].put((int) index & SEGMENT_MASK, count); }
+        
+        int add_support(long index, int amount) {
+            IntBuffer segment = support[(int) (index >>> SEGMENT_SHIFT)];
+            int i = (int) index & SEGMENT_MASK;
+            int count = segment.get(i) + amount;
+            segment.put(i, count);
+            return count;
+        }
+        
+        void set_supports(long index, int[] counts) { // may cross a segment
+            for (int i = 0; i < counts.length; i++) set_support(index + i, counts[i]);
+        }
+        
+        boolean off_heap() { return true; }
+    
+        void release() {
+            if (buffers == null) return;
+            List<ByteBuffer> released = buffers;
+            buffers = null;
+            options = null; // later use fails fast, instead of reading freed memory
+            remaining = null;
+            entropy = null;
+            sum_weights = null;
+            sum_weight_log_weights = null;
+            support = null;
+            if (INVOKE_CLEANER == null) return;
+            try { for (ByteBuffer buffer : released) INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not release the wave", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package wfc.utility;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Binary min-heap without duplicates, for int items in the range [0 -> capacity).
+ * For when the items are dense indexes (I.e. the cells of a grid) ordered by a float key.
+ *
+ * The heap position of every item is stored in an array indexed by the item.
+ * So contains / remove and updating the key of an item is an array lookup plus O(log n) sifting.
+ * No hashing, boxing or allocation after construction.
+ *
+ */
+
+
+public class IntHeapSet {
+	
+	private final int[] heap; // heap index -> item
+	private final int[] position; // item -> heap index (-1 if not in the heap)
+	private final float[] keys; // item -> key
+	private int count;
+	
+	/**
+	 * @param capacity items must be in the range [0 -> capacity)
+	 */
+	public IntHeapSet(int capacity) {
+		heap = new int[capacity];
+		position = new int[capacity];
+		keys = new float[capacity];
+		Arrays.fill(position, -1);
+	}
+	
+	/**
+	 * Adds the item, or updates its key if it's already in the heap.
+	 * @param item item in range [0 -> capacity)
+	 * @param key the lowest key is popped first
+	 */
+	public void set(int item, float key) {
+		int index = position[item];
+		if (index == -1) {
+			keys[item] = key;
+			heap[count] = item;
+			position[item] = count;
+			up(count++);
+		} else {
+			float previous = keys[item];
+			keys[item] = key;
+			if (key < previous) up(index);
+			else if (key > previous) down(index);
+		}
+	}
+	
+	/**
+	 * Throws ArrayIndexOutOfBoundsException. Use with: notEmpty()
+	 * @return the item with the lowest key
+	 */
+	public int pop() {
+		int removed = heap[0];
+		position[removed] = -1;
+		if (--count > 0) {
+			int moved = heap[count];
+			heap[0] = moved;
+			position[moved] = 0;
+			down(0);
+		} return removed;
+	}
+	
+	/**
+	 * @param item item in range [0 -> capacity)
+	 * @return true if the item was in the heap
+	 */
+	public boolean remove(int item) {
+		int index = position[item];
+		if (index == -1) return false;
+		position[item] = -1;
+		if (index != --count) {
+			int moved = heap[count];
+			heap[index] = moved;
+			position[moved] = index;
+			float moved_key = keys[moved];
+			if (index > 0 && moved_key < keys[heap[parent(index)]]) {
+				up(index);
+			} else down(index);
+		} return true;
+	}
+	
+	public boolean contains(int item) {
+		return position[item] != -1;
+	}
+	
+	public float key(int item) {
+		return keys[item];
+	}
+	
+	/**
+	 * Adding the items in heap order, with the same keys, rebuilds the same heap.
+	 * @param index heap index [0 -> size)
+	 * @return the item at the heap index
+	 */
+	public int get(int index) {
+		return heap[index];
+	}
+	
+	public int peek() {
+		return heap[0];
+	}
+	
+	public void clear() {
+		for (int i = 0; i < count; i++) {
+			position[heap[i]] = -1;
+		} count = 0;
+	}
+	
+	public int size() {
+		return count;
+	}
+	
+	public int capacity() {
+		return heap.length;
+	}
+	
+	public boolean isEmpty () {
+		return count == 0;
+	}
+	
+	public boolean notEmpty () {
+		return count > 0;
+	}
+	
+	private void up(int index) {
+		int item = heap[index];
+		float key = keys[item];
+		while (index > 0) {
+			int parent_index = parent(index);
+			int parent = heap[parent_index];
+			if (key < keys[parent]) {
+				heap[index] = parent;
+				position[parent] = index;
+				index = parent_index;
+			} else break;
+		} heap[index] = item;
+		position[item] = index;
+	}
+	
+	private void down(int index) {
+		int item = heap[index];
+		float key = keys[item];
+		while (true) {
+			int left_index = 1 + (index * 2);
+			if (left_index >= count) break;
+			int right_index = left_index + 1;
+			int child_index = left_index;
+			if (right_index < count && keys[heap[right_index]] < keys[heap[left_index]]) {
+				child_index = right_index;
+			} int child = heap[child_index];
+			if (key <= keys[child]) break;
+			heap[index] = child;
+			position[child] = index;
+			index = child_index;
+		} heap[index] = item;
+		position[item] = index;
+	}
+	
+	private int parent(int index) {
+		return (index - 1) / 2;
+	}
+}
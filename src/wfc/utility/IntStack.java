@@ -5,6 +5,8 @@ package wfc.utility;
 
 public class IntStack {
 	
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+	
 	private int[] s;
 	private int p;
 	
@@ -32,7 +34,7 @@ public class IntStack {
 	public void push(int i) {
 		if (p == s.length) {
 			int[] tmp = s;
-			s = new int[s.length * 2 + 1];
+			s = new int[grow(s.length)];
 			System.arraycopy(tmp,0, s,0,tmp.length);
 		} s[p++] = i;
 	}
@@ -58,6 +60,11 @@ public class IntStack {
 		return s;
 	}
 	
+	private static int grow(int length) { // doubled, up to the largest array the VM allows
+		if (length == MAX_LENGTH) throw new IllegalStateException("Stack is full: " + length);
+		return (int) Math.min(length * 2L + 1, MAX_LENGTH);
+	}
+	
 	public void clear() {
 		p = 0;
 	}
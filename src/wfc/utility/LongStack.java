@@ -0,0 +1,98 @@
+package wfc.utility;
+
+
+
+public class LongStack {
+	
+	private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+	
+	private long[] s;
+	private int p;
+	
+	public LongStack(int cap) {
+		if (cap < 0) throw new NegativeArraySizeException("cap < 0: " + cap);
+		s = new long[cap];
+	}
+	
+	public LongStack() {
+		this(0);
+	}
+	
+	public void makeRoom(int n) {
+		ensureCapacity(n + p);
+	}
+	
+	public void ensureCapacity(int size) {
+		if (size > s.length) {
+			long[] tmp = s;
+			s = new long[size];
+			System.arraycopy(tmp,0, s,0,p);
+		}
+	}
+	
+	public void push(long l) {
+		if (p == s.length) {
+			long[] tmp = s;
+			s = new long[grow(s.length)];
+			System.arraycopy(tmp,0, s,0,tmp.length);
+		} s[p++] = l;
+	}
+	
+	public long pop() {
+		return s[--p];
+	}
+	
+	public long peek() {
+		return s[p - 1];
+	}
+	
+	/**
+	 * Replaces the value at index (from the bottom of the stack)
+	 * @param index index below size
+	 * @param l new value
+	 */
+	public void set(int index, long l) {
+		s[index] = l;
+	}
+	
+	public long get(int index) {
+		return s[index];
+	}
+	
+	public void fit(int min) {
+		int cap = Math.max(Math.max(0,min),p);
+		long[] tmp = s;
+		s = new long[cap];
+		System.arraycopy(tmp,0, s,0, p);
+	}
+	
+	public long[] array() {
+		return s;
+	}
+	
+	private static int grow(int length) { // doubled, up to the largest array the VM allows
+		if (length == MAX_LENGTH) throw new IllegalStateException("Stack is full: " + length);
+		return (int) Math.min(length * 2L + 1, MAX_LENGTH);
+	}
+	
+	public void clear() {
+		p = 0;
+	}
+	
+	public int size() {
+		return p;
+	}
+	
+	public int sizeBytes() {
+		return p * Long.BYTES;
+	}
+	
+	public int capacity() {
+		return s.length;
+	}
+	
+	public boolean isEmpty() {
+		return p == 0;
+	}
+	
+}
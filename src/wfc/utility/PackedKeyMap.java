@@ -0,0 +1,135 @@
+package wfc.utility;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Open addressing (linear probing) hash map from fixed length long[] keys to dense int ids.
+ * Ids are assigned in insertion order [0 -> size). Every key has an occurrence count.
+ *
+ * The keys are stored packed in one array, (words_per_key) consecutive longs per id.
+ * The table only stores ids. No boxing, hashing of objects or allocation per key.
+ *
+ */
+
+
+public class PackedKeyMap {
+
+    private final int words_per_key;
+    private long[] keys; // [id][word] packed keys
+    private int[] counts; // [id] occurrences
+    private int[] table; // [slot] id + 1 (0 is an empty slot)
+    private int mask;
+    private int size;
+
+    /**
+     * @param words_per_key length of every key
+     * @param expected_size expected number of unique keys
+     */
+    public PackedKeyMap(int words_per_key, int expected_size) {
+        if (words_per_key < 1) throw new IllegalArgumentException("words_per_key < 1: " + words_per_key);
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, expected_size) * 2 - 1) << 1);
+        this.words_per_key = words_per_key;
+        this.keys = new long[Math.max(1, expected_size) * words_per_key];
+        this.counts = new int[Math.max(1, expected_size)];
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds one occurrence of the key.
+     * @param key array containing the key
+     * @param offset index of the first word of the key
+     * @return the id of the key
+     */
+    public int increment(long[] key, int offset) {
+        return add(key, offset, 1);
+    }
+
+    /**
+     * Adds occurrences of the key.
+     * @param key array containing the key
+     * @param offset index of the first word of the key
+     * @param occurrences occurrences to add
+     * @return the id of the key
+     */
+    public int add(long[] key, int offset, int occurrences) {
+        int slot = hash(key, offset) & mask;
+        while (true) {
+            int id = table[slot] - 1;
+            if (id < 0) break;
+            if (equals(id, key, offset)) {
+                counts[id] += occurrences;
+                return id;
+            } slot = (slot + 1) & mask;
+        } int id = size++;
+        if (id == counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+            keys = Arrays.copyOf(keys, counts.length * words_per_key);
+        } System.arraycopy(key, offset, keys, id * words_per_key, words_per_key);
+        counts[id] = occurrences;
+        table[slot] = id + 1;
+        if (size * 2 > table.length) rehash();
+        return id;
+    }
+
+    /**
+     * @param key array containing the key
+     * @param offset index of the first word of the key
+     * @return the id of the key, or -1 if not in the map
+     */
+    public int get(long[] key, int offset) {
+        int slot = hash(key, offset) & mask;
+        while (true) {
+            int id = table[slot] - 1;
+            if (id < 0) return -1;
+            if (equals(id, key, offset)) return id;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public int count(int id) {
+        return counts[id];
+    }
+
+    /**
+     * @return the packed keys, (words_per_key) longs per id (Do not modify)
+     */
+    public long[] keys() {
+        return keys;
+    }
+
+    public int words_per_key() {
+        return words_per_key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean equals(int id, long[] key, int offset) {
+        int stored = id * words_per_key;
+        for (int i = 0; i < words_per_key; i++) {
+            if (keys[stored + i] != key[offset + i]) return false;
+        } return true;
+    }
+
+    private int hash(long[] key, int offset) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < words_per_key; i++) {
+            h = (h ^ key[offset + i]) * 0xBF58476D1CE4E5B9L;
+            h ^= (h >>> 31);
+        } return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash() {
+        int capacity = table.length * 2;
+        table = new int[capacity];
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hash(keys, id * words_per_key) & mask;
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+            table[slot] = id + 1;
+        }
+    }
+}